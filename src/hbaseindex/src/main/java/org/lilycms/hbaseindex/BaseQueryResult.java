@@ -3,10 +3,63 @@ package org.lilycms.hbaseindex;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 
+import java.io.IOException;
+import java.util.Arrays;
+
 abstract class BaseQueryResult implements QueryResult {
     protected Result currentResult;
     protected QueryResult currentQResult;
 
+    /**
+     * Implemented on top of {@link #advance}, copying the identifier.
+     */
+    public byte[] next() throws IOException {
+        if (!advance())
+            return null;
+        int offset = getIdentifierOffset();
+        return Arrays.copyOfRange(getIdentifierBuffer(), offset, offset + getIdentifierLength());
+    }
+
+    /**
+     * Implemented on top of {@link #advance}, copying the identifiers into the batch.
+     */
+    public int next(QueryResultBatch batch, int maxRows) throws IOException {
+        checkMaxRows(maxRows);
+        batch.clear();
+        while (batch.size() < maxRows && advance()) {
+            batch.add(getIdentifierBuffer(), getIdentifierOffset(), getIdentifierLength(), getCurrentRow());
+        }
+        return batch.size();
+    }
+
+    /**
+     * Returns the HBase row of the current result, from which its data can be read, or null
+     * if not available.
+     */
+    protected Result getCurrentRow() {
+        if (currentResult != null) {
+            return currentResult;
+        } else if (currentQResult instanceof BaseQueryResult) {
+            return ((BaseQueryResult)currentQResult).getCurrentRow();
+        } else {
+            return null;
+        }
+    }
+
+    protected static void checkMaxRows(int maxRows) {
+        if (maxRows < 1)
+            throw new IllegalArgumentException("maxRows should be at least 1, got: " + maxRows);
+    }
+
+    /**
+     * Compares the identifiers of the current results of two QueryResults, without copying them.
+     */
+    protected static int compareIdentifiers(QueryResult result1, QueryResult result2) {
+        return Bytes.compareTo(result1.getIdentifierBuffer(), result1.getIdentifierOffset(),
+                result1.getIdentifierLength(), result2.getIdentifierBuffer(), result2.getIdentifierOffset(),
+                result2.getIdentifierLength());
+    }
+
     public byte[] getData(byte[] qualifier) {
         if (currentResult != null) {
             return currentResult.getValue(Index.DATA_FAMILY, qualifier);
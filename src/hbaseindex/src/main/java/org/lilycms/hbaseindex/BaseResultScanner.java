@@ -0,0 +1,69 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Base class for ResultScanners, implementing the batch and iterator methods on top
+ * of {@link #next()}.
+ */
+abstract class BaseResultScanner implements ResultScanner {
+    public Result[] next(int nbRows) throws IOException {
+        List<Result> results = new ArrayList<Result>(nbRows);
+        Result result;
+        while (results.size() < nbRows && (result = next()) != null) {
+            results.add(result);
+        }
+        return results.toArray(new Result[results.size()]);
+    }
+
+    public Iterator<Result> iterator() {
+        return new Iterator<Result>() {
+            private Result next;
+
+            public boolean hasNext() {
+                if (next == null) {
+                    try {
+                        next = BaseResultScanner.this.next();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return next != null;
+            }
+
+            public Result next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Result result = next;
+                next = null;
+                return result;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
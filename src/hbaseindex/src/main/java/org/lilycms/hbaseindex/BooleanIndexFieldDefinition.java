@@ -0,0 +1,51 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * An IndexFieldDefinition for booleans, stored in a single byte. False sorts before true.
+ */
+public class BooleanIndexFieldDefinition extends IndexFieldDefinition {
+    private static final byte FALSE = 0x00;
+    private static final byte TRUE = 0x01;
+
+    public BooleanIndexFieldDefinition(String name) {
+        super(name, IndexValueType.BOOLEAN);
+    }
+
+    public BooleanIndexFieldDefinition(String name, ObjectNode jsonObject) {
+        super(name, IndexValueType.BOOLEAN, jsonObject);
+    }
+
+    @Override
+    public final int getLength() {
+        return 1;
+    }
+
+    @Override
+    public byte[] toBytes(Object value) {
+        return new byte[] { (Boolean)value ? TRUE : FALSE };
+    }
+
+    /**
+     * Converts the byte produced by {@link #toBytes} back to a boolean.
+     */
+    public boolean fromBytes(byte[] bytes, int offset) {
+        return bytes[offset] == TRUE;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import org.apache.hadoop.hbase.client.Result;
+
+import java.io.IOException;
+
+/**
+ * Base class for QueryResults which produce their results a batch at a time, by
+ * {@link #merge}. Single results, as returned by {@link #advance}, are taken from a batch
+ * which is merged ahead.
+ */
+abstract class BufferedQueryResult extends BaseQueryResult {
+    static final int BATCH_SIZE = 100;
+
+    /** The results merged ahead for advance(). */
+    private QueryResultBatch buffer;
+    private int bufferPos = -1;
+
+    /**
+     * Adds the next merged results to the target batch, until it contains maxRows rows or
+     * the end is reached.
+     */
+    protected abstract void merge(QueryResultBatch target, int maxRows) throws IOException;
+
+    public boolean advance() throws IOException {
+        if (buffer == null) {
+            buffer = new QueryResultBatch(BATCH_SIZE);
+        }
+
+        bufferPos++;
+        if (bufferPos >= buffer.size()) {
+            buffer.clear();
+            merge(buffer, BATCH_SIZE);
+            bufferPos = buffer.size() > 0 ? 0 : -1;
+        }
+
+        return bufferPos >= 0;
+    }
+
+    public int next(QueryResultBatch batch, int maxRows) throws IOException {
+        checkMaxRows(maxRows);
+        batch.clear();
+
+        // First hand out the results which were merged ahead by advance
+        if (buffer != null) {
+            while (batch.size() < maxRows && bufferPos + 1 < buffer.size()) {
+                batch.add(buffer, ++bufferPos);
+            }
+        }
+
+        merge(batch, maxRows);
+        return batch.size();
+    }
+
+    public byte[] getIdentifierBuffer() {
+        return hasCurrent() ? buffer.getIdentifierBuffer() : null;
+    }
+
+    public int getIdentifierOffset() {
+        return buffer.getIdentifierOffset(bufferPos);
+    }
+
+    public int getIdentifierLength() {
+        return buffer.getIdentifierLength(bufferPos);
+    }
+
+    public byte[] getData(byte[] qualifier) {
+        if (!hasCurrent())
+            throw new RuntimeException("QueryResult.getData() is being called but there is no current result.");
+        return buffer.getData(bufferPos, qualifier);
+    }
+
+    protected Result getCurrentRow() {
+        return hasCurrent() ? buffer.getRow(bufferPos) : null;
+    }
+
+    private boolean hasCurrent() {
+        return buffer != null && bufferPos >= 0 && bufferPos < buffer.size();
+    }
+}
@@ -20,12 +20,23 @@ import org.codehaus.jackson.node.ObjectNode;
 /**
  * This kind of field allows to store arbitrary bytes (a byte array)
  * in the index key, the ideal fallback the case none of the other
- * types suite your needs. Only for fixed-length byte arrays, if the
+ * types suite your needs. By default for fixed-length byte arrays, if the
  * provided value is longer it will be cut off, otherwise it will
  * be padded with zeros.
+ *
+ * <p>Using {@link #setVariableLength}, byte arrays of any length can be
+ * stored. In that case zero bytes in the value are escaped as 0x00 0xFF,
+ * and the value is followed by the end-of-field marker 0x00 0x01. This keeps
+ * the ordering of the byte arrays: a shorter array sorts before the longer
+ * arrays it is a prefix of. Range queries with the same from and to value
+ * then act as a prefix query.
  */
 public class ByteIndexFieldDefinition extends IndexFieldDefinition {
     private int length = 10;
+    private boolean variableLength = false;
+
+    private static final byte[] EOF_MARKER = new byte[] {0x00, 0x01};
+    private static final byte ESCAPE = (byte)0xFF;
 
     public ByteIndexFieldDefinition(String name) {
         super(name, IndexValueType.BYTES);
@@ -36,6 +47,8 @@ public class ByteIndexFieldDefinition extends IndexFieldDefinition {
 
         if (jsonObject.get("length") != null)
             this.length = jsonObject.get("length").getIntValue();
+        if (jsonObject.get("variableLength") != null)
+            this.variableLength = jsonObject.get("variableLength").getBooleanValue();
     }
 
     /**
@@ -48,14 +61,37 @@ public class ByteIndexFieldDefinition extends IndexFieldDefinition {
         this.length = length;
     }
 
+    public boolean isVariableLength() {
+        return variableLength;
+    }
+
+    /**
+     * Indicates if byte arrays should be stored as they are, whatever their length,
+     * rather than in the fixed length set by {@link #setLength}.
+     *
+     * <p>This changes the format of the index rows, so it can only be set on new indexes.
+     */
+    public void setVariableLength(boolean variableLength) {
+        this.variableLength = variableLength;
+    }
+
     @Override
     public int getLength() {
-        return length;
+        return variableLength ? -1 : length;
+    }
+
+    @Override
+    public byte[] getEndOfFieldMarker() {
+        return variableLength ? EOF_MARKER : super.getEndOfFieldMarker();
     }
 
     @Override
     public byte[] toBytes(Object value) {
         byte[] byteValue = (byte[])value;
+
+        if (variableLength)
+            return escape(byteValue);
+
         if (byteValue.length == getLength())
             return byteValue;
 
@@ -67,10 +103,43 @@ public class ByteIndexFieldDefinition extends IndexFieldDefinition {
         return bytes;
     }
 
+    /**
+     * Only variable-length byte arrays support prefix conditions. The escaping of zero
+     * bytes does not depend on the bytes which follow, so an escaped prefix is a prefix
+     * of each escaped value starting with it.
+     */
+    @Override
+    public byte[] toPrefixBytes(Object value) {
+        if (!variableLength)
+            return super.toPrefixBytes(value);
+        return escape((byte[])value);
+    }
+
+    private static byte[] escape(byte[] value) {
+        int zeros = 0;
+        for (byte b : value) {
+            if (b == 0)
+                zeros++;
+        }
+
+        if (zeros == 0)
+            return value;
+
+        byte[] bytes = new byte[value.length + zeros];
+        int pos = 0;
+        for (byte b : value) {
+            bytes[pos++] = b;
+            if (b == 0)
+                bytes[pos++] = ESCAPE;
+        }
+        return bytes;
+    }
+
     @Override
     public ObjectNode toJson() {
         ObjectNode object = super.toJson();
         object.put("length", length);
+        object.put("variableLength", variableLength);
         return object;
     }
 
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+/**
+ * A QueryResult which returns the rows of a result cached in a {@link QueryResultCache}.
+ */
+class CachedQueryResult extends BaseQueryResult {
+    private QueryResultBatch rows;
+    private int pos = -1;
+
+    public CachedQueryResult(QueryResultBatch rows) {
+        this.rows = rows;
+    }
+
+    public boolean advance() {
+        if (pos + 1 < rows.size()) {
+            pos++;
+            currentResult = rows.getRow(pos);
+            return true;
+        }
+        pos = rows.size();
+        currentResult = null;
+        return false;
+    }
+
+    public int next(QueryResultBatch batch, int maxRows) {
+        checkMaxRows(maxRows);
+        batch.clear();
+        while (batch.size() < maxRows && pos + 1 < rows.size()) {
+            pos++;
+            batch.add(rows, pos);
+        }
+        currentResult = pos >= 0 && pos < rows.size() ? rows.getRow(pos) : null;
+        return batch.size();
+    }
+
+    public byte[] getIdentifierBuffer() {
+        return rows.getIdentifierBuffer();
+    }
+
+    public int getIdentifierOffset() {
+        return rows.getIdentifierOffset(pos);
+    }
+
+    public int getIdentifierLength() {
+        return rows.getIdentifierLength(pos);
+    }
+
+    @Override
+    public byte[] getData(byte[] qualifier) {
+        return rows.getData(pos, qualifier);
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import java.io.IOException;
+
+/**
+ * A QueryResult which records the rows of another QueryResult, and adds them to a
+ * {@link QueryResultCache} once all of them have been read.
+ *
+ * <p>Results which are closed before reaching the end, or which are too large for the
+ * cache, are not cached.
+ */
+class CachingQueryResult extends BaseQueryResult {
+    private QueryResult result;
+    private QueryResultCache cache;
+    private IndexEntry.ByteArrayKey key;
+    private long generation;
+    private long created;
+    private QueryResultBatch recorded = new QueryResultBatch();
+
+    /**
+     * @param generation the generation on which the result depends, as retrieved before
+     *                   performing the query
+     */
+    public CachingQueryResult(QueryResult result, QueryResultCache cache, IndexEntry.ByteArrayKey key,
+            long generation, long created) {
+        this.result = result;
+        this.cache = cache;
+        this.key = key;
+        this.generation = generation;
+        this.created = created;
+    }
+
+    public boolean advance() throws IOException {
+        if (result.advance()) {
+            currentQResult = result;
+            if (recorded != null) {
+                recorded.add(result.getIdentifierBuffer(), result.getIdentifierOffset(), result.getIdentifierLength(),
+                        getCurrentRow());
+                checkRecordedSize();
+            }
+            return true;
+        }
+        currentQResult = null;
+        finish();
+        return false;
+    }
+
+    @Override
+    public int next(QueryResultBatch batch, int maxRows) throws IOException {
+        int count = result.next(batch, maxRows);
+        currentQResult = null;
+        if (recorded != null) {
+            for (int i = 0; i < count; i++) {
+                recorded.add(batch, i);
+            }
+            checkRecordedSize();
+        }
+        if (count == 0) {
+            finish();
+        }
+        return count;
+    }
+
+    private void checkRecordedSize() {
+        if (recorded.size() > cache.getMaxResultRows()) {
+            recorded = null;
+        }
+    }
+
+    private void finish() {
+        if (recorded != null) {
+            cache.put(key, generation, created, recorded);
+            recorded = null;
+        }
+    }
+
+    public byte[] getIdentifierBuffer() {
+        return result.getIdentifierBuffer();
+    }
+
+    public int getIdentifierOffset() {
+        return result.getIdentifierOffset();
+    }
+
+    public int getIdentifierLength() {
+        return result.getIdentifierLength();
+    }
+
+    public void close() {
+        recorded = null;
+        result.close();
+    }
+}
@@ -15,8 +15,6 @@
  */
 package org.lilycms.hbaseindex;
 
-import org.apache.hadoop.hbase.util.Bytes;
-
 import java.io.IOException;
 
 /**
@@ -27,57 +25,35 @@ import java.io.IOException;
  * sorted in increasing identifier order, and return each identifier at most
  * once. This will not be the case for queries that only search
  * on a subset of the fields in the index, or when using range queries
- * on multi-valued fields.
+ * on {@link IndexEntry#addMultiValueField multi-valued fields}.
  *
  * <p>A Conjunction itself also returns its results in increasing identifier
  * order, and can hence serve as input to other Conjunctions.
  *
- * <p>TODO the implementation is currently not optimal if lots of rows need
- * to be skipped to move to the next common result, since this is done by
- * iterating one result at a time using next() calls. It would be better to
- * directly skip to the next appropriate result. HBase scanners don't support
- * this natively, so to skip we would rather need to open a new scanner. But
- * we can't exactly know on beforehand if this will be beneficial or not. Maybe
- * we could have some heuristic for this, e.g. after 10 next() calls open a new
- * scanner to jump directly to the next relevant result.
+ * <p>The results are merged a batch at a time (see {@link QueryResult#next(QueryResultBatch, int)}).
+ * Within a batch, rows without a match are skipped using binary search.
+ *
+ * <p>All rows of both results are still read from the index, also when lots of them
+ * need to be skipped to move to the next common result. {@link ConjunctionBuilder} avoids
+ * this by restarting the scans at the next relevant result.
  */
-public class Conjunction extends BaseQueryResult {
-    private QueryResult result1;
-    private QueryResult result2;
-
+public class Conjunction extends MergeQueryResult {
     public Conjunction(QueryResult result1, QueryResult result2) {
-        this.result1 = result1;
-        this.result2 = result2;
+        super(result1, result2);
     }
 
-    public byte[] next() throws IOException {
-        byte[] key1 = result1.next();
-        byte[] key2 = result2.next();
-
-        if (key1 == null || key2 == null)
-            return null;
-
-        int cmp = Bytes.compareTo(key1, key2);
-
-        while (cmp != 0) {
-            if (cmp < 0) {
-                while (cmp < 0) {
-                    key1 = result1.next();
-                    if (key1 == null)
-                        return null;
-                    cmp = Bytes.compareTo(key1, key2);
-                }
-            } else if (cmp > 0) {
-                while (cmp > 0) {
-                    key2 = result2.next();
-                    if (key2 == null)
-                        return null;
-                    cmp = Bytes.compareTo(key1, key2);
-                }
+    protected void merge(QueryResultBatch target, int maxRows) throws IOException {
+        while (target.size() < maxRows && has1() && has2()) {
+            int cmp = batch1.compareIdentifiers(pos1, batch2, pos2);
+            if (cmp == 0) {
+                target.add(batch1, pos1);
+                pos1++;
+                pos2++;
+            } else if (cmp < 0) {
+                pos1 = batch1.seek(pos1 + 1, batch2, pos2);
+            } else {
+                pos2 = batch2.seek(pos2 + 1, batch1, pos1);
             }
         }
-
-        currentQResult = result1;
-        return key1;
     }
 }
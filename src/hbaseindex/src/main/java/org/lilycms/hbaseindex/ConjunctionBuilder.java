@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import org.lilycms.util.ArgumentValidator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Builds the conjunction (AND) of queries on one or more indexes, choosing the order in
+ * which the queries are combined.
+ *
+ * <p>Each query is performed and its first {@link #SAMPLE_SIZE} rows are read. Queries
+ * which end within these rows are known to be small, for the others the number of rows
+ * is estimated using the {@link IndexStatistics statistics} of their index, if available.
+ * The query with the fewest rows drives the conjunction: its results are iterated, and the
+ * other queries are positioned on each of its identifiers. For queries with equals
+ * conditions on all fields of their index, this is done by restarting the scan at the
+ * identifier, so that the rows in between are not read. The rows read for the estimates
+ * are used as the first rows of each query.
+ *
+ * <p>As for {@link Conjunction}, the results of each query should be sorted in increasing
+ * identifier order, and contain each identifier at most once. The conjunction returns its
+ * results in the same order.
+ *
+ * <pre>
+ * QueryResult result = new ConjunctionBuilder()
+ *     .add(index1, query1)
+ *     .add(index2, query2)
+ *     .create();
+ * </pre>
+ */
+public class ConjunctionBuilder {
+    /** The number of rows read of each query to estimate its size. */
+    public static final int SAMPLE_SIZE = 1000;
+
+    private List<Index> indexes = new ArrayList<Index>();
+    private List<Query> queries = new ArrayList<Query>();
+
+    public ConjunctionBuilder add(Index index, Query query) {
+        ArgumentValidator.notNull(index, "index");
+        ArgumentValidator.notNull(query, "query");
+        indexes.add(index);
+        queries.add(query);
+        return this;
+    }
+
+    /**
+     * Performs the queries and returns their conjunction.
+     */
+    public QueryResult create() throws IOException {
+        if (queries.isEmpty())
+            throw new IllegalStateException("No queries have been added to the conjunction.");
+
+        List<IndexSeeker> seekers = new ArrayList<IndexSeeker>(queries.size());
+        final List<Long> estimates = new ArrayList<Long>(queries.size());
+        try {
+            for (int i = 0; i < queries.size(); i++) {
+                IndexSeeker seeker = new IndexSeeker(indexes.get(i), queries.get(i), SAMPLE_SIZE);
+                seekers.add(seeker);
+                estimates.add(estimateRowCount(seeker));
+            }
+        } catch (IOException e) {
+            closeAll(seekers);
+            throw e;
+        } catch (RuntimeException e) {
+            closeAll(seekers);
+            throw e;
+        }
+
+        // Sort the queries on their estimated number of rows, keeping the given order for equal estimates
+        List<Integer> order = new ArrayList<Integer>(seekers.size());
+        for (int i = 0; i < seekers.size(); i++) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                return estimates.get(i1).compareTo(estimates.get(i2));
+            }
+        });
+
+        List<IndexSeeker> others = new ArrayList<IndexSeeker>(seekers.size() - 1);
+        for (int i = 1; i < order.size(); i++) {
+            others.add(seekers.get(order.get(i)));
+        }
+        return new SeekingConjunction(seekers.get(order.get(0)), others);
+    }
+
+    private static long estimateRowCount(IndexSeeker seeker) {
+        if (seeker.isComplete())
+            return seeker.getBatch().size();
+
+        long estimate = seeker.getIndex().getStatistics() != null ?
+                seeker.getIndex().estimateRowCount(seeker.getQuery()) : -1;
+        // The query has more rows than were read, even if outdated statistics would say otherwise
+        return estimate >= 0 ? Math.max(estimate, SAMPLE_SIZE + 1) : Long.MAX_VALUE;
+    }
+
+    private static void closeAll(List<IndexSeeker> seekers) {
+        for (IndexSeeker seeker : seekers) {
+            seeker.close();
+        }
+    }
+}
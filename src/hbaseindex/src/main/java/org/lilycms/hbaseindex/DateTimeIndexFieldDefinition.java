@@ -27,22 +27,32 @@ import java.util.*;
  * <p>The instant is stored in the index as a long, or in case there is only a time
  * component, as an integer.
  *
- * <p>This class accepts java.util.Date as date/time representation. It is up to the
- * user to make sure any timezone corrections have happened already.
+ * <p>This class accepts java.util.Date and java.util.Calendar as date/time representation.
+ * For the {@link Precision#DATE DATE} and {@link Precision#TIME TIME} precisions, the
+ * date or time of day is taken in the time zone set by {@link #setTimeZone}, or when none
+ * is set, in the default time zone of the JVM.
  */
 public class DateTimeIndexFieldDefinition  extends IndexFieldDefinition {
     public enum Precision {DATETIME, DATETIME_NOMILLIS, DATE, TIME, TIME_NOMILLIS}
     private Precision precision = Precision.DATETIME_NOMILLIS;
+    private TimeZone timeZone;
+
+    private static final long SECOND = 1000L;
+    private static final long DAY = 24L * 60L * 60L * 1000L;
 
     public DateTimeIndexFieldDefinition(String name) {
         super(name, IndexValueType.DATETIME);
     }
 
     public DateTimeIndexFieldDefinition(String name, ObjectNode jsonObject) {
+        // The stored order is not read: existing indexes were always written in ascending order,
+        // whatever order their definition says
         super(name, IndexValueType.DATETIME);
 
         if (jsonObject.get("precision") != null)
             this.precision = Precision.valueOf(jsonObject.get("precision").getTextValue());
+        if (jsonObject.get("timeZone") != null)
+            this.timeZone = TimeZone.getTimeZone(jsonObject.get("timeZone").getTextValue());
     }
 
     public Precision getPrecision() {
@@ -54,6 +64,22 @@ public class DateTimeIndexFieldDefinition  extends IndexFieldDefinition {
         this.precision = precision;
     }
 
+    /**
+     * Returns the time zone set using {@link #setTimeZone}, null if none is set.
+     */
+    public TimeZone getTimeZone() {
+        return timeZone;
+    }
+
+    /**
+     * The time zone in which the date and the time of day are determined for the DATE
+     * and TIME precisions. If null, the default time zone of the JVM is used, which can
+     * give different results on different machines.
+     */
+    public void setTimeZone(TimeZone timeZone) {
+        this.timeZone = timeZone;
+    }
+
     @Override
     public int getLength() {
         switch (precision) {
@@ -67,36 +93,38 @@ public class DateTimeIndexFieldDefinition  extends IndexFieldDefinition {
 
     @Override
     public byte[] toBytes(Object value) {
-        Date date = (Date)value;
-
-        Calendar calendar = new GregorianCalendar();
-        calendar.setTime(date);
+        long millis = value instanceof Calendar ? ((Calendar)value).getTimeInMillis() : ((Date)value).getTime();
 
+        // The truncation is done arithmetically on the milliseconds, rather than through
+        // a Calendar, which is costly to create.
         long result;
 
         switch (precision) {
             case DATETIME:
-                result = calendar.getTimeInMillis();
+                result = millis;
                 break;
             case DATETIME_NOMILLIS:
-                calendar.set(Calendar.MILLISECOND, 0);
-                result = calendar.getTimeInMillis();
+                result = millis - floorMod(millis, SECOND);
                 break;
-            case DATE:
-                calendar.set(Calendar.HOUR_OF_DAY, 0);
-                calendar.set(Calendar.MINUTE, 0);
-                calendar.set(Calendar.SECOND, 0);
-                calendar.set(Calendar.MILLISECOND, 0);
-                result = calendar.getTimeInMillis();
+            case DATE: {
+                TimeZone zone = timeZone != null ? timeZone : TimeZone.getDefault();
+                long localMillis = millis + zone.getOffset(millis);
+                long localMidnight = localMillis - floorMod(localMillis, DAY);
+                // The offset at midnight can differ from the one at the instant itself (daylight saving)
+                long midnight = localMidnight - zone.getOffset(millis);
+                result = localMidnight - zone.getOffset(midnight);
                 break;
+            }
             case TIME:
-            case TIME_NOMILLIS:
-                int hours = calendar.get(Calendar.HOUR_OF_DAY);
-                int minutes = calendar.get(Calendar.MINUTE);
-                int seconds = calendar.get(Calendar.SECOND);
-                int millis = precision == Precision.TIME ? calendar.get(Calendar.MILLISECOND) : 0;
-                result = (hours * 60 * 60 * 1000) + (minutes * 60 * 1000) + (seconds * 1000) + millis;
+            case TIME_NOMILLIS: {
+                TimeZone zone = timeZone != null ? timeZone : TimeZone.getDefault();
+                long timeOfDay = floorMod(millis + zone.getOffset(millis), DAY);
+                if (precision == Precision.TIME_NOMILLIS) {
+                    timeOfDay -= timeOfDay % SECOND;
+                }
+                result = timeOfDay;
                 break;
+            }
             default:
                 throw new RuntimeException("Unexpected precision: " + precision);
         }
@@ -118,10 +146,17 @@ public class DateTimeIndexFieldDefinition  extends IndexFieldDefinition {
         return bytes;
     }
 
+    private static long floorMod(long value, long divisor) {
+        long mod = value % divisor;
+        return mod < 0 ? mod + divisor : mod;
+    }
+
     @Override
     public ObjectNode toJson() {
         ObjectNode object = super.toJson();
         object.put("precision", precision.toString());
+        if (timeZone != null)
+            object.put("timeZone", timeZone.getID());
         return object;
     }
 }
@@ -20,11 +20,25 @@ import org.codehaus.jackson.node.ObjectNode;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 
+/**
+ * A decimal field in an index.
+ *
+ * <p>By default values are stored in a fixed number of bytes, see {@link #setLength}, in
+ * which long mantissas are truncated. The {@link #setVariableLength variable-length} encoding
+ * stores values exactly, using as many bytes as needed.
+ */
 public class DecimalIndexFieldDefinition extends IndexFieldDefinition {
     private int length = 10;
+    private boolean variableLength = false;
 
     private static final int EXP_OFFSET = (int)Math.pow(2, 14); // half of the largest number that can be stored in 15 bits
 
+    // Bytes used by the variable-length encoding
+    private static final byte SIGN_NEGATIVE = 0x10;
+    private static final byte SIGN_ZERO = 0x20;
+    private static final byte SIGN_POSITIVE = 0x30;
+    private static final byte TERMINATOR = 0x01;
+
     public DecimalIndexFieldDefinition(String name) {
         super(name, IndexValueType.DECIMAL);
     }
@@ -34,11 +48,13 @@ public class DecimalIndexFieldDefinition extends IndexFieldDefinition {
 
         if (jsonObject.get("length") != null)
             this.length = jsonObject.get("length").getIntValue();
+        if (jsonObject.get("variableLength") != null)
+            this.variableLength = jsonObject.get("variableLength").getBooleanValue();
     }
 
     @Override
     public int getLength() {
-        return length;
+        return variableLength ? -1 : length;
     }
 
     /**
@@ -53,6 +69,21 @@ public class DecimalIndexFieldDefinition extends IndexFieldDefinition {
         this.length = length;
     }
 
+    public boolean isVariableLength() {
+        return variableLength;
+    }
+
+    /**
+     * Indicates if values should be stored exactly, using a variable number of bytes,
+     * rather than in the fixed length set by {@link #setLength}. See {@link #toBytes}
+     * for the format.
+     *
+     * <p>This changes the format of the index rows, so it can only be set on new indexes.
+     */
+    public void setVariableLength(boolean variableLength) {
+        this.variableLength = variableLength;
+    }
+
     /**
      * Converts a decimal to sortable bytes.
      *
@@ -72,9 +103,25 @@ public class DecimalIndexFieldDefinition extends IndexFieldDefinition {
      * become larger than negative ones. The maximum length of the mantissa is determined by
      * {@link #setLength}.
      *
+     * <p>In {@link #setVariableLength variable-length} mode, the format is:
+     *
+     * <pre>
+     * [1 byte sign: 0x10 negative, 0x20 zero, 0x30 positive][exponent][digits][terminator]
+     * </pre>
+     *
+     * <p>The number, without trailing zeros, is written as 0.d1d2d3... x 100^exponent, with
+     * base-100 digits of which the first one is not zero. The exponent is stored in an
+     * order-preserving variable-length integer encoding, each digit as one byte with value digit + 2, and the
+     * digits are followed by a terminator byte 0x01, which is lower than any digit so that
+     * shorter mantissas sort first. For negative numbers all bytes after the sign byte are
+     * inverted. Zero consists of the sign byte only. Equal numbers with a different scale,
+     * like 1.5 and 1.50, have the same encoding.
      */
     @Override
     public byte[] toBytes(Object value) {
+        if (variableLength)
+            return toVariableLengthBytes((BigDecimal)value);
+
         byte[] bytes = new byte[getLength()];
         BigDecimal dec = (BigDecimal)value;
 
@@ -117,10 +164,114 @@ public class DecimalIndexFieldDefinition extends IndexFieldDefinition {
         return bytes;
     }
 
+    private byte[] toVariableLengthBytes(BigDecimal dec) {
+        int signum = dec.signum();
+        if (signum == 0)
+            return new byte[] {SIGN_ZERO};
+
+        dec = dec.stripTrailingZeros();
+        String digits = dec.unscaledValue().abs().toString();
+        // value = 0.digits x 10^exp10
+        long exp10 = (long)digits.length() - dec.scale();
+
+        // Align on base-100 digits
+        if (exp10 % 2 != 0) {
+            digits = "0" + digits;
+            exp10++;
+        }
+        if (digits.length() % 2 != 0) {
+            digits = digits + "0";
+        }
+
+        byte[] expBytes = VarLongEncoding.encode(exp10 / 2);
+        int digitCount = digits.length() / 2;
+        byte[] bytes = new byte[1 + expBytes.length + digitCount + 1];
+
+        bytes[0] = signum > 0 ? SIGN_POSITIVE : SIGN_NEGATIVE;
+        System.arraycopy(expBytes, 0, bytes, 1, expBytes.length);
+        int pos = 1 + expBytes.length;
+        for (int i = 0; i < digitCount; i++) {
+            int digit = (digits.charAt(i * 2) - '0') * 10 + (digits.charAt(i * 2 + 1) - '0');
+            bytes[pos++] = (byte)(digit + 2);
+        }
+        bytes[pos] = TERMINATOR;
+
+        if (signum < 0) {
+            for (int i = 1; i < bytes.length; i++) {
+                bytes[i] ^= 0xFF;
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Converts the bytes produced by {@link #toBytes} back to a decimal. This is only supported
+     * in {@link #setVariableLength variable-length} mode, since otherwise the mantissa can be
+     * truncated. The result has no trailing zeros.
+     */
+    public BigDecimal fromBytes(byte[] bytes, int offset) {
+        if (!variableLength)
+            throw new IllegalStateException("Decoding decimals is only supported for variable-length encoding.");
+
+        byte sign = bytes[offset];
+        if (sign == SIGN_ZERO)
+            return BigDecimal.ZERO;
+        boolean negative = sign == SIGN_NEGATIVE;
+
+        // Undo the inversion of negative numbers on a copy
+        int length = getEncodedLength(bytes, offset, false);
+        byte[] encoded = new byte[length];
+        System.arraycopy(bytes, offset, encoded, 0, length);
+        if (negative) {
+            for (int i = 1; i < encoded.length; i++) {
+                encoded[i] ^= 0xFF;
+            }
+        }
+
+        long exp100 = VarLongEncoding.decode(encoded, 1);
+        int pos = 1 + VarLongEncoding.getEncodedLength(encoded, 1, false);
+
+        StringBuilder digits = new StringBuilder();
+        for (; encoded[pos] != TERMINATOR; pos++) {
+            int digit = encoded[pos] - 2;
+            digits.append((char)('0' + digit / 10)).append((char)('0' + digit % 10));
+        }
+
+        // value = 0.digits x 100^exp100
+        BigInteger unscaled = new BigInteger(digits.toString());
+        long scale = digits.length() - exp100 * 2;
+        BigDecimal result = new BigDecimal(negative ? unscaled.negate() : unscaled, (int)scale);
+        return result.stripTrailingZeros();
+    }
+
+    @Override
+    public int getEncodedLength(byte[] bytes, int offset, boolean inverted) {
+        if (!variableLength)
+            return super.getEncodedLength(bytes, offset, inverted);
+
+        byte sign = inverted ? (byte)(bytes[offset] ^ 0xFF) : bytes[offset];
+        if (sign == SIGN_ZERO)
+            return 1;
+
+        // Exponent and digits are inverted for negative numbers
+        boolean digitsInverted = inverted ^ (sign == SIGN_NEGATIVE);
+        int pos = offset + 1;
+        pos += VarLongEncoding.getEncodedLength(bytes, pos, digitsInverted);
+
+        byte terminator = digitsInverted ? (byte)(TERMINATOR ^ 0xFF) : TERMINATOR;
+        while (bytes[pos] != terminator) {
+            pos++;
+        }
+
+        return pos + 1 - offset;
+    }
+
     @Override
     public ObjectNode toJson() {
         ObjectNode object = super.toJson();
         object.put("length", length);
+        object.put("variableLength", variableLength);
         return object;
     }
 }
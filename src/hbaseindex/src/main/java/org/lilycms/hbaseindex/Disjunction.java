@@ -15,8 +15,6 @@
  */
 package org.lilycms.hbaseindex;
 
-import org.apache.hadoop.hbase.util.Bytes;
-
 import java.io.IOException;
 
 /**
@@ -25,57 +23,33 @@ import java.io.IOException;
  * <p>The supplied QueryResults should adhere to the same requirements as for
  * {@link Conjunction}s. 
  */
-public class Disjunction extends BaseQueryResult {
-    private QueryResult result1;
-    private QueryResult result2;
-    private byte[] key1;
-    private byte[] key2;
-    private boolean init = false;
-
+public class Disjunction extends MergeQueryResult {
     public Disjunction(QueryResult result1, QueryResult result2) {
-        this.result1 = result1;
-        this.result2 = result2;
+        super(result1, result2);
     }
 
-    public byte[] next() throws IOException {
-        if (!init) {
-            key1 = result1.next();
-            key2 = result2.next();
-            init = true;
-        }
-
-        if (key1 == null && key2 == null) {
-            return null;
-        } else if (key1 == null) {
-            byte[] result = key2;
-            currentQResult = result2;
-            key2 = result2.next();
-            return result;
-        } else if (key2 == null) {
-            byte[] result = key1;
-            currentQResult = result1;
-            key1 = result1.next();
-            return result;
-        }
-
-        int cmp = Bytes.compareTo(key1, key2);
-
-        if (cmp == 0) {
-            byte[] result = key1;
-            currentQResult = result1;
-            key1 = result1.next();
-            key2 = result2.next();
-            return result;
-        } else if (cmp < 0) {
-            byte[] result = key1;
-            currentQResult = result1;
-            key1 = result1.next();
-            return result;
-        } else { // cmp > 0
-            byte[] result = key2;
-            currentQResult = result2;
-            key2 = result2.next();
-            return result;
+    protected void merge(QueryResultBatch target, int maxRows) throws IOException {
+        while (target.size() < maxRows) {
+            boolean has1 = has1();
+            boolean has2 = has2();
+
+            if (!has1 && !has2) {
+                break;
+            } else if (!has1) {
+                target.add(batch2, pos2++);
+            } else if (!has2) {
+                target.add(batch1, pos1++);
+            } else {
+                int cmp = batch1.compareIdentifiers(pos1, batch2, pos2);
+                if (cmp == 0) {
+                    target.add(batch1, pos1++);
+                    pos2++;
+                } else if (cmp < 0) {
+                    target.add(batch1, pos1++);
+                } else { // cmp > 0
+                    target.add(batch2, pos2++);
+                }
+            }
         }
     }
 }
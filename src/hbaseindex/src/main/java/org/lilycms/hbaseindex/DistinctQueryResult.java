@@ -0,0 +1,63 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A QueryResult which returns each identifier of another QueryResult only once.
+ *
+ * <p>The identifiers returned so far are kept in memory.
+ */
+class DistinctQueryResult extends BaseQueryResult {
+    private QueryResult result;
+    private Set<IndexEntry.ByteArrayKey> seen = new HashSet<IndexEntry.ByteArrayKey>();
+
+    public DistinctQueryResult(QueryResult result) {
+        this.result = result;
+    }
+
+    public boolean advance() throws IOException {
+        while (result.advance()) {
+            IndexEntry.ByteArrayKey identifier = new IndexEntry.ByteArrayKey(result.getIdentifierBuffer(),
+                    result.getIdentifierOffset(), result.getIdentifierLength());
+            if (seen.add(identifier)) {
+                currentQResult = result;
+                return true;
+            }
+        }
+        currentQResult = null;
+        return false;
+    }
+
+    public byte[] getIdentifierBuffer() {
+        return result.getIdentifierBuffer();
+    }
+
+    public int getIdentifierOffset() {
+        return result.getIdentifierOffset();
+    }
+
+    public int getIdentifierLength() {
+        return result.getIdentifierLength();
+    }
+
+    public void close() {
+        result.close();
+    }
+}
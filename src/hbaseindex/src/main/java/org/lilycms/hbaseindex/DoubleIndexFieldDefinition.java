@@ -0,0 +1,69 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * An IndexFieldDefinition for doubles.
+ *
+ * <p>The encoding is the same as the one of {@link FloatIndexFieldDefinition}, applied
+ * to the 8 bytes of a double. As for floats, range queries are better suited than equals
+ * queries.
+ */
+public class DoubleIndexFieldDefinition extends IndexFieldDefinition {
+    public DoubleIndexFieldDefinition(String name) {
+        super(name, IndexValueType.DOUBLE);
+    }
+
+    public DoubleIndexFieldDefinition(String name, ObjectNode jsonObject) {
+        super(name, IndexValueType.DOUBLE, jsonObject);
+    }
+
+    @Override
+    public final int getLength() {
+        return Bytes.SIZEOF_DOUBLE;
+    }
+
+    @Override
+    public byte[] toBytes(Object value) {
+        long bits = Double.doubleToLongBits((Double)value);
+
+        // Positive numbers: invert the sign bit. Negative numbers: invert all bits, so that
+        // bigger magnitudes become smaller. See FloatIndexFieldDefinition for the details.
+        if (bits < 0) {
+            bits = ~bits;
+        } else {
+            bits |= Long.MIN_VALUE;
+        }
+
+        return Bytes.toBytes(bits);
+    }
+
+    /**
+     * Converts the bytes produced by {@link #toBytes} back to a double.
+     */
+    public double fromBytes(byte[] bytes, int offset) {
+        long bits = Bytes.toLong(bytes, offset);
+        if (bits < 0) {
+            bits &= Long.MAX_VALUE;
+        } else {
+            bits = ~bits;
+        }
+        return Double.longBitsToDouble(bits);
+    }
+}
@@ -23,27 +23,40 @@ public class IdentifierEncoding {
      * Extracts the identifier from an index row key.
      *
      * @param bytes byte array containing an encoded row key at its end (and arbitrary bytes before that).
-     *              Note that this method modifies the bytes in case inverted is true!
      * @param inverted indicates if the bits in the row key are inverted (can be the case for descending ordering)
      */
     public static byte[] decode(byte[] bytes, boolean inverted) {
-        if (inverted) {
-            for (int i = 0; i < Bytes.SIZEOF_INT; i++) {
-                int pos = bytes.length - i - 1;
-                bytes[pos] = bytes[pos] ^= 0xFF;
-            }
+        int keyLength = getLength(bytes, bytes.length, inverted);
+        byte[] result = new byte[keyLength];
+        copy(bytes, bytes.length, inverted, result, 0);
+        return result;
+    }
+
+    /**
+     * Returns the length of the identifier in the row key which ends at the given position.
+     * The bytes are not modified.
+     */
+    public static int getLength(byte[] bytes, int end, boolean inverted) {
+        int keyLength = 0;
+        for (int i = end - Bytes.SIZEOF_INT; i < end; i++) {
+            keyLength = (keyLength << 8) | ((inverted ? bytes[i] ^ 0xFF : bytes[i]) & 0xFF);
         }
+        return keyLength;
+    }
 
-        int keyLength = Bytes.toInt(bytes, bytes.length - Bytes.SIZEOF_INT);
-        byte[] result = new byte[keyLength];
-        System.arraycopy(bytes, bytes.length - keyLength - Bytes.SIZEOF_INT, result, 0, keyLength);
-        
+    /**
+     * Copies the identifier in the row key which ends at the given position to the target array,
+     * un-inverting its bits if necessary. The target should have room for {@link #getLength} bytes.
+     */
+    public static void copy(byte[] bytes, int end, boolean inverted, byte[] target, int targetOffset) {
+        int keyLength = getLength(bytes, end, inverted);
+        int offset = end - Bytes.SIZEOF_INT - keyLength;
         if (inverted) {
-            for (int j = 0; j < result.length; j++) {
-                result[j] ^= 0xFF;
+            for (int i = 0; i < keyLength; i++) {
+                target[targetOffset + i] = (byte)(bytes[offset + i] ^ 0xFF);
             }
+        } else {
+            System.arraycopy(bytes, offset, target, targetOffset, keyLength);
         }
-
-        return result;
     }
 }
@@ -15,9 +15,14 @@
  */
 package org.lilycms.hbaseindex;
 
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.filter.*;
 import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
@@ -26,8 +31,11 @@ import org.lilycms.util.ArgumentValidator;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.*;
 
 /**
  * Allows to query an index, and add entries to it or remove entries from it.
@@ -41,6 +49,9 @@ import java.util.Map;
 public class Index {
   private HTable htable;
   private IndexDefinition definition;
+  private IndexState state;
+  private QueryResultCache cache;
+  private IndexStatistics statistics;
 
   protected static final byte[] DATA_FAMILY = Bytes.toBytes("data");
   private static final byte[] DUMMY_QUALIFIER = Bytes.toBytes("dummy");
@@ -51,9 +62,51 @@ public class Index {
 
   private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
 
-  protected Index(HTable htable, IndexDefinition definition) {
+  private static final int COUNT_THREADS = 4;
+  private static final int COUNT_SCANNER_CACHING = 1000;
+  private static final int REVERSE_SCAN_CHUNK_SIZE = 100;
+  /** The assumed fraction of rows matching a range or prefix condition, if not on the first field. */
+  private static final double RANGE_SELECTIVITY = 1.0 / 3;
+
+  protected Index(HTable htable, IndexDefinition definition, IndexState state) {
+    this(htable, definition, state, null);
+  }
+
+  /**
+   * @param cache the cache for the results of queries, can be null
+   */
+  protected Index(HTable htable, IndexDefinition definition, IndexState state, QueryResultCache cache) {
     this.htable = htable;
     this.definition = definition;
+    this.state = state;
+    this.cache = cache;
+  }
+
+  public IndexDefinition getDefinition() {
+    return definition;
+  }
+
+  /**
+   * The state of the index at the time this Index instance was retrieved.
+   */
+  public IndexState getState() {
+    return state;
+  }
+
+  /**
+   * The statistics of the index at the time this Index instance was retrieved, null if
+   * they have never been collected.
+   */
+  public IndexStatistics getStatistics() {
+    return statistics;
+  }
+
+  void setStatistics(IndexStatistics statistics) {
+    this.statistics = statistics;
+  }
+
+  HTable getHTable() {
+    return htable;
   }
 
   /**
@@ -69,20 +122,65 @@ public class Index {
     ArgumentValidator.notNull(identifier, "identifier");
     validateIndexEntry(entry);
 
-    byte[] indexKey = buildRowKey(entry, identifier);
-    Put put = new Put(indexKey);
+    List<Put> puts = createPuts(entry, identifier, HConstants.LATEST_TIMESTAMP);
+    if (puts.size() == 1) {
+      htable.put(puts.get(0));
+    } else {
+      htable.put(puts);
+    }
+
+    if (cache != null) {
+      for (Put put : puts) {
+        invalidateCache(put.getRow());
+      }
+    }
+  }
+
+  /**
+   * Creates the Puts which add the rows for the given entry to the index, this is one
+   * Put unless the entry has multi-valued fields.
+   */
+  List<Put> createPuts(IndexEntry entry, byte[] identifier, long timestamp) {
+    List<byte[]> indexKeys = buildRowKeys(entry, identifier, definition.getFields());
+    List<Put> puts = new ArrayList<Put>(indexKeys.size());
 
     Map<IndexEntry.ByteArrayKey, byte[]> data = entry.getData();
-    if (data.size() > 0) {
-      for (Map.Entry<IndexEntry.ByteArrayKey, byte[]> item : data.entrySet()) {
-        put.add(DATA_FAMILY, item.getKey().getKey(), item.getValue());
+    for (byte[] indexKey : indexKeys) {
+      Put put = new Put(indexKey);
+      if (data.size() > 0) {
+        for (Map.Entry<IndexEntry.ByteArrayKey, byte[]> item : data.entrySet()) {
+          put.add(DATA_FAMILY, item.getKey().getKey(), timestamp, item.getValue());
+        }
+      } else {
+        // HBase does not allow to create a row without columns, so add a dummy column
+        put.add(DATA_FAMILY, DUMMY_QUALIFIER, timestamp, DUMMY_VALUE);
+      }
+      puts.add(put);
+    }
+
+    return puts;
+  }
+
+  /**
+   * Creates the cells of the row for the given entry, the same as those added by
+   * {@link #addEntry}. This is used to write index rows directly into store files.
+   */
+  List<KeyValue> createKeyValues(IndexEntry entry, byte[] identifier, long timestamp) {
+    List<byte[]> indexKeys = buildRowKeys(entry, identifier, definition.getFields());
+
+    Map<IndexEntry.ByteArrayKey, byte[]> data = entry.getData();
+    List<KeyValue> keyValues = new ArrayList<KeyValue>(indexKeys.size() * Math.max(1, data.size()));
+    for (byte[] indexKey : indexKeys) {
+      if (data.size() > 0) {
+        for (Map.Entry<IndexEntry.ByteArrayKey, byte[]> item : data.entrySet()) {
+          keyValues.add(new KeyValue(indexKey, DATA_FAMILY, item.getKey().getKey(), timestamp, item.getValue()));
+        }
+      } else {
+        keyValues.add(new KeyValue(indexKey, DATA_FAMILY, DUMMY_QUALIFIER, timestamp, DUMMY_VALUE));
       }
-    } else {
-      // HBase does not allow to create a row without columns, so add a dummy column
-      put.add(DATA_FAMILY, DUMMY_QUALIFIER, DUMMY_VALUE);
     }
 
-    htable.put(put);
+    return keyValues;
   }
 
   /**
@@ -95,12 +193,60 @@ public class Index {
     ArgumentValidator.notNull(identifier, "identifier");
     validateIndexEntry(entry);
 
-    byte[] indexKey = buildRowKey(entry, identifier);
-    Delete delete = new Delete(indexKey);
-    htable.delete(delete);
+    List<byte[]> indexKeys = buildRowKeys(entry, identifier, definition.getFields());
+    if (definition.getRewrittenVersion() < definition.getVersion()) {
+      // The entry might still be stored in rows written by an older version of the definition
+      for (int version = definition.getRewrittenVersion(); version < definition.getVersion(); version++) {
+        if (hasOnlyNullsAfter(entry, version)) {
+          indexKeys.addAll(buildRowKeys(entry, identifier, definition.getFields(version)));
+        }
+      }
+    }
+
+    if (indexKeys.size() == 1) {
+      htable.delete(new Delete(indexKeys.get(0)));
+    } else {
+      ArrayList<Delete> deletes = new ArrayList<Delete>(indexKeys.size());
+      for (byte[] indexKey : indexKeys) {
+        deletes.add(new Delete(indexKey));
+      }
+      htable.delete(deletes);
+    }
+
+    if (cache != null) {
+      for (byte[] indexKey : indexKeys) {
+        invalidateCache(indexKey);
+      }
+    }
   }
 
-  private void validateIndexEntry(IndexEntry indexEntry) {
+  /**
+   * Invalidates the cached query results which might include the given row, this should
+   * be done after the row has been written.
+   */
+  private void invalidateCache(byte[] rowKey) {
+    int nameLength = Bytes.toBytes(definition.getFullName()).length;
+    int firstFieldEnd = getFieldEnd(definition.getFields().get(0), rowKey, nameLength);
+    cache.invalidate(definition.getFullName(), Arrays.copyOfRange(rowKey, 0, firstFieldEnd));
+  }
+
+  /**
+   * Checks if the entry has no values for the fields added after the given version, as is
+   * the case for the entries stored in rows of that version.
+   */
+  private boolean hasOnlyNullsAfter(IndexEntry entry, int version) {
+    for (IndexFieldDefinition fieldDef : definition.getFields()) {
+      if (definition.getFieldVersion(fieldDef.getName()) > version) {
+        for (Object value : entry.getValues(fieldDef.getName())) {
+          if (value != null)
+            return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  void validateIndexEntry(IndexEntry indexEntry) {
     for (Map.Entry<String, Object> entry : indexEntry.getFields().entrySet()) {
       IndexFieldDefinition fieldDef = definition.getField(entry.getKey());
       if (fieldDef == null) {
@@ -108,12 +254,28 @@ public class Index {
           "the index definition: " + entry.getKey());
       }
 
-      if (entry.getValue() != null) {
-        if (!fieldDef.getType().supportsType(entry.getValue().getClass())) {
-          throw new MalformedIndexEntryException("Index entry for field " + entry.getKey() + " contains" +
-            " a value of an incorrect type. Expected: " + fieldDef.getType().getType().getName() +
-            ", found: " + entry.getValue().getClass().getName());
-        }
+      validateValueType(fieldDef, entry.getValue());
+    }
+
+    for (Map.Entry<String, List<Object>> entry : indexEntry.getMultiValueFields().entrySet()) {
+      IndexFieldDefinition fieldDef = definition.getField(entry.getKey());
+      if (fieldDef == null) {
+        throw new MalformedIndexEntryException("Index entry contains a field that is not part of " +
+          "the index definition: " + entry.getKey());
+      }
+
+      for (Object value : entry.getValue()) {
+        validateValueType(fieldDef, value);
+      }
+    }
+  }
+
+  private void validateValueType(IndexFieldDefinition fieldDef, Object value) {
+    if (value != null) {
+      if (!fieldDef.getType().supportsType(value.getClass())) {
+        throw new MalformedIndexEntryException("Index entry for field " + fieldDef.getName() + " contains" +
+          " a value of an incorrect type. Expected: " + fieldDef.getType().getType().getName() +
+          ", found: " + value.getClass().getName());
       }
     }
   }
@@ -129,17 +291,55 @@ public class Index {
    *
    * <p>The field flags are currently used to mark if a field is null
    * or not. If a field is null, its value will be encoded as all-zero bits.
+   *
+   * <p>An entry with multi-valued fields gets a row key for each combination of values.
+   * Values which encode to the same bytes only count once.
    */
-  private byte[] buildRowKey(IndexEntry entry, byte[] identifier) {
-    List<byte[]> keyComponents = new ArrayList<byte[]>();
+  private List<byte[]> buildRowKeys(IndexEntry entry, byte[] identifier, List<IndexFieldDefinition> fieldDefs) {
+    // The encoded values of each field, the values of multi-valued fields are only encoded once
+    List<List<byte[]>> fieldValues = new ArrayList<List<byte[]>>(fieldDefs.size());
+    int combinations = 1;
+    for (IndexFieldDefinition fieldDef : fieldDefs) {
+      List<byte[]> encodedValues = new ArrayList<byte[]>(1);
+      for (Object value : entry.getValues(fieldDef.getName())) {
+        byte[] bytes = fieldToBytes(fieldDef, value, true);
+        if (!containsBytes(encodedValues, bytes))
+          encodedValues.add(bytes);
+      }
+      fieldValues.add(encodedValues);
+      combinations *= encodedValues.size();
+    }
 
-    keyComponents.add(Bytes.toBytes(definition.getFullName()));
-    for (IndexFieldDefinition fieldDef : definition.getFields()) {
-      Object value = entry.getValue(fieldDef.getName());
-      byte[] bytes = fieldToBytes(fieldDef, value, true);
-      keyComponents.add(bytes);
+    List<byte[]> indexKeys = new ArrayList<byte[]>(combinations);
+    List<byte[]> keyComponents = new ArrayList<byte[]>(fieldDefs.size() + 1);
+    for (int combination = 0; combination < combinations; combination++) {
+      keyComponents.clear();
+      keyComponents.add(Bytes.toBytes(definition.getFullName()));
+
+      // Decompose the combination number into one value index per field, the last field varying fastest
+      int remainder = combination;
+      for (int i = fieldValues.size() - 1; i >= 0; i--) {
+        List<byte[]> encodedValues = fieldValues.get(i);
+        keyComponents.add(1, encodedValues.get(remainder % encodedValues.size()));
+        remainder /= encodedValues.size();
+      }
+
+      indexKeys.add(buildRowKey(keyComponents, identifier));
     }
 
+    return indexKeys;
+  }
+
+  private static boolean containsBytes(List<byte[]> list, byte[] bytes) {
+    for (byte[] item : list) {
+      if (Arrays.equals(item, bytes))
+        return true;
+    }
+    return false;
+  }
+
+  private byte[] buildRowKey(List<byte[]> keyComponents, byte[] identifier) {
+
     byte[] encodedIdentifier = IdentifierEncoding.encode(identifier);
 
     // Calculate length of the index key
@@ -172,7 +372,7 @@ public class Index {
    *
    * @param includeEndMarker for variable-length fields, indicates that the end-of-field marker should be included
    */
-  private byte[] fieldToBytes(IndexFieldDefinition fieldDef, Object value, boolean includeEndMarker) {
+  private static byte[] fieldToBytes(IndexFieldDefinition fieldDef, Object value, boolean includeEndMarker) {
     byte[] valueAsBytes;
     if (value != null) {
       valueAsBytes = fieldDef.toBytes(value);
@@ -204,17 +404,569 @@ public class Index {
     return bytes;
   }
 
-  private void invertBits(byte[] bytes, int startOffset, int endOffset) {
+  /**
+   * Encodes the prefix of a non-null value, this is the field flags followed by the encoded prefix.
+   */
+  private static byte[] prefixToBytes(IndexFieldDefinition fieldDef, Object prefix) {
+    byte[] prefixBytes = fieldDef.toPrefixBytes(prefix);
+    byte[] bytes = new byte[FIELD_FLAGS_SIZE + prefixBytes.length];
+    System.arraycopy(prefixBytes, 0, bytes, FIELD_FLAGS_SIZE, prefixBytes.length);
+
+    if (fieldDef.getOrder() == Order.DESCENDING) {
+      invertBits(bytes, 0, bytes.length);
+    }
+
+    return bytes;
+  }
+
+  private static void invertBits(byte[] bytes, int startOffset, int endOffset) {
     for (int i = startOffset; i < endOffset; i++) {
       bytes[i] ^= 0xFF;
     }
   }
 
-  private byte setNullFlag(byte flags) {
+  private static byte setNullFlag(byte flags) {
     return (byte)(flags | 0x01);
   }
 
+  /**
+   * Converts a row key written by an older version of the index definition to the current
+   * version, by inserting null values for the missing fields in front of the identifier.
+   *
+   * @return the new row key, or null if the row key already contains all fields.
+   */
+  static byte[] upgradeRowKey(IndexDefinition definition, byte[] rowKey) {
+    List<IndexFieldDefinition> fieldDefs = definition.getFields();
+
+    // The identifier is followed by its length, which gives us where the fields end
+    int identifierLength = Bytes.toInt(rowKey, rowKey.length - Bytes.SIZEOF_INT);
+    if (definition.getIdentifierOrder() == Order.DESCENDING) {
+      identifierLength = ~identifierLength;
+    }
+    int fieldsEnd = rowKey.length - identifierLength - Bytes.SIZEOF_INT;
+
+    int pos = Bytes.toBytes(definition.getFullName()).length;
+    int fieldCount = 0;
+    while (pos < fieldsEnd && fieldCount < fieldDefs.size()) {
+      pos = getFieldEnd(fieldDefs.get(fieldCount), rowKey, pos);
+      fieldCount++;
+    }
+
+    if (fieldCount == fieldDefs.size())
+      return null;
+
+    List<byte[]> components = new ArrayList<byte[]>();
+    components.add(Arrays.copyOfRange(rowKey, 0, fieldsEnd));
+    for (int i = fieldCount; i < fieldDefs.size(); i++) {
+      components.add(fieldToBytes(fieldDefs.get(i), null, true));
+    }
+    components.add(Arrays.copyOfRange(rowKey, fieldsEnd, rowKey.length));
+
+    return concat(components);
+  }
+
+  /**
+   * Returns the position right after the field which starts at the given position in the row key.
+   */
+  private static int getFieldEnd(IndexFieldDefinition fieldDef, byte[] rowKey, int pos) {
+    boolean inverted = fieldDef.getOrder() == Order.DESCENDING;
+    byte flags = inverted ? (byte)(rowKey[pos] ^ 0xFF) : rowKey[pos];
+    pos += FIELD_FLAGS_SIZE;
+
+    // Null values are encoded without value bytes, see fieldToBytes
+    if ((flags & 0x01) == 0) {
+      pos += fieldDef.getEncodedLength(rowKey, pos, inverted);
+    }
+
+    return pos + fieldDef.getEndOfFieldMarker().length;
+  }
+
+  /**
+   * Returns the range of row keys in the data table which is occupied by the given index.
+   *
+   * <p>All row keys of an index start with the name of the index followed by the field flags
+   * of the first field. Taking the field flags into account avoids that the range would also
+   * include the rows of another index whose name starts with the name of this index (field
+   * flags never occur as bytes in the UTF-8 encoding of a name).
+   */
+  static KeyRange getKeyRange(IndexDefinition definition) {
+    byte[] name = Bytes.toBytes(definition.getFullName());
+    IndexFieldDefinition firstField = definition.getFields().get(0);
+
+    if (firstField.getOrder() == Order.DESCENDING) {
+      // The field flags are inverted: 0xFF for non-null values, 0xFE for null
+      return new KeyRange(Bytes.add(name, new byte[] {(byte)0xFE}), KeyRange.nextPrefix(name));
+    } else {
+      // 0x00 for non-null values, 0x01 for null
+      return new KeyRange(Bytes.add(name, new byte[] {0x00}), Bytes.add(name, new byte[] {0x02}));
+    }
+  }
+
+  /**
+   * Performs a query on the index.
+   *
+   * @throws IndexNotActiveException if the index is not {@link IndexState#ACTIVE active}, since
+   *         the results could be incomplete.
+   */
   public QueryResult performQuery(Query query) throws IOException {
+    Scan scan = createScan(query);
+    restrictData(scan, query.isIncludeData(), query.getDataQualifiers());
+
+    IndexEntry.ByteArrayKey cacheKey = null;
+    long generation = 0;
+    long started = 0;
+    if (cache != null) {
+      cacheKey = buildCacheKey(scan, query);
+      generation = cache.getGeneration(definition.getFullName(), getCachePrefix(query));
+      started = System.currentTimeMillis();
+      QueryResultBatch cached = cache.get(cacheKey, generation);
+      if (cached != null) {
+        return new CachedQueryResult(cached);
+      }
+    }
+
+    ResultScanner scanner = null;
+    if (query.isReverse()) {
+      scanner = new ReverseResultScanner(htable, scan, REVERSE_SCAN_CHUNK_SIZE);
+    } else if (query.getParallelism() > 1) {
+      List<KeyRange> ranges = KeyRange.splitOnRegions(htable, scan.getStartRow(), scan.getStopRow());
+      if (ranges.size() > 1) {
+        scanner = new ParallelResultScanner(htable, scan, ranges, query.getParallelism(), query.isPreserveOrder());
+      }
+    }
+    if (scanner == null) {
+      if (query.getPrefetchSize() > 0) {
+        scan.setCaching(query.getPrefetchSize());
+        scanner = new PrefetchingResultScanner(htable.getScanner(scan), query.getPrefetchSize());
+      } else {
+        scanner = htable.getScanner(scan);
+      }
+    }
+
+    QueryResult result = new ScannerQueryResult(scanner, definition.getIdentifierOrder() == Order.DESCENDING);
+
+    if (needsDistinct(query)) {
+      result = new DistinctQueryResult(result);
+    }
+
+    if (cache != null) {
+      result = new CachingQueryResult(result, cache, cacheKey, generation, started);
+    }
+
+    return result;
+  }
+
+  /**
+   * Checks whether a query returns its results sorted in increasing identifier order, so
+   * that it can be started at a given identifier using {@link #performQuery(Query, byte[], int)}.
+   * This is the case for queries with equals conditions on all fields.
+   */
+  boolean isSeekable(Query query) {
+    return query.getEqConditions().size() == definition.getFields().size() && query.getRangeCondition() == null &&
+        query.getPrefixCondition() == null && !query.isReverse() &&
+        definition.getIdentifierOrder() == Order.ASCENDING;
+  }
+
+  /**
+   * Performs a {@link #isSeekable seekable} query with a plain scan, optionally skipping the
+   * results whose identifier is smaller than the given one.
+   *
+   * @param fromIdentifier the identifier from which to start, null to start at the beginning
+   * @param caching the number of rows to retrieve per request
+   */
+  QueryResult performQuery(Query query, byte[] fromIdentifier, int caching) throws IOException {
+    Scan scan = createScan(query);
+    restrictData(scan, query.isIncludeData(), query.getDataQualifiers());
+    if (fromIdentifier != null) {
+      // With equals conditions on all fields, the start row is the key of the rows without the identifier
+      scan.setStartRow(Bytes.add(scan.getStartRow(), IdentifierEncoding.encode(fromIdentifier)));
+    }
+    scan.setCaching(caching);
+    return new ScannerQueryResult(htable.getScanner(scan), false);
+  }
+
+  /**
+   * Builds the key of the results of a query in the cache, from the range of the scan and the
+   * options which influence the returned rows.
+   */
+  private IndexEntry.ByteArrayKey buildCacheKey(Scan scan, Query query) {
+    boolean ordered = query.isPreserveOrder() || query.getParallelism() == 1;
+    byte flags = 0;
+    flags |= query.isIncludeData() ? 0x01 : 0;
+    flags |= needsDistinct(query) ? 0x02 : 0;
+    flags |= query.isReverse() ? 0x04 : 0;
+    flags |= ordered ? 0x08 : 0;
+
+    List<byte[]> components = new ArrayList<byte[]>();
+    components.add(new byte[] {flags});
+    components.add(Bytes.toBytes(scan.getStartRow().length));
+    components.add(scan.getStartRow());
+    components.add(Bytes.toBytes(scan.getStopRow().length));
+    components.add(scan.getStopRow());
+    for (byte[] qualifier : query.getDataQualifiers()) {
+      components.add(Bytes.toBytes(qualifier.length));
+      components.add(qualifier);
+    }
+
+    return new IndexEntry.ByteArrayKey(concat(components));
+  }
+
+  /**
+   * Returns the first-field prefix of the rows matched by a query, if the query has an equals
+   * condition on the first field, and null otherwise. This determines which writes
+   * invalidate its cached results.
+   */
+  private byte[] getCachePrefix(Query query) {
+    IndexFieldDefinition firstField = definition.getFields().get(0);
+    Query.EqualsCondition eqCond = query.getCondition(firstField.getName());
+    if (eqCond == null)
+      return null;
+    return Bytes.add(Bytes.toBytes(definition.getFullName()), fieldToBytes(firstField, eqCond.getValue(), true));
+  }
+
+  /**
+   * Counts the number of results of a query, without fetching them. The rows are counted by
+   * scanning the regions of the index concurrently, only the first cell of each row is
+   * transferred.
+   *
+   * <p>For a query which is {@link Query#setDistinct distinct}, the identifiers need to be
+   * compared, this is done by iterating over the results on a single thread.
+   *
+   * @throws IndexNotActiveException if the index is not {@link IndexState#ACTIVE active}.
+   */
+  public long count(Query query) throws IOException, InterruptedException {
+    Scan scan = createScan(query);
+    restrictData(scan, false, Collections.<byte[]>emptyList());
+    scan.setCaching(COUNT_SCANNER_CACHING);
+
+    if (needsDistinct(query)) {
+      QueryResult result = new DistinctQueryResult(new ScannerQueryResult(htable.getScanner(scan),
+          definition.getIdentifierOrder() == Order.DESCENDING));
+      try {
+        long count = 0;
+        while (result.advance()) {
+          count++;
+        }
+        return count;
+      } finally {
+        result.close();
+      }
+    }
+
+    List<KeyRange> ranges = KeyRange.splitOnRegions(htable, scan.getStartRow(), scan.getStopRow());
+    if (ranges.size() == 1) {
+      return countRows(htable, scan);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(COUNT_THREADS, ranges.size()));
+    try {
+      List<Future<Long>> futures = new ArrayList<Future<Long>>(ranges.size());
+      for (KeyRange range : ranges) {
+        final Scan rangeScan = new Scan(scan);
+        rangeScan.setStartRow(range.getStart());
+        rangeScan.setStopRow(range.getStop());
+        futures.add(executor.submit(new Callable<Long>() {
+          public Long call() throws Exception {
+            // HTable instances can not be shared between threads
+            HTable rangeTable = new HTable(htable.getConfiguration(), htable.getTableName());
+            try {
+              return countRows(rangeTable, rangeScan);
+            } finally {
+              rangeTable.close();
+            }
+          }
+        }));
+      }
+
+      long count = 0;
+      for (Future<Long> future : futures) {
+        try {
+          count += future.get();
+        } catch (ExecutionException e) {
+          IOException ioe = new IOException("Error counting rows of index " + definition.getFullName());
+          ioe.initCause(e.getCause());
+          throw ioe;
+        }
+      }
+      return count;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Checks whether an entry has been added to the index for the given identifier. This
+   * is done with Gets on the row keys of the entry, which are answered using the row bloom
+   * filters of the index data table, so that looking up an entry which does not exist
+   * usually does not need to read any store file.
+   *
+   * @throws IndexNotActiveException if the index is not {@link IndexState#ACTIVE active}.
+   */
+  public boolean exists(IndexEntry entry, byte[] identifier) throws IOException {
+    ArgumentValidator.notNull(entry, "entry");
+    ArgumentValidator.notNull(identifier, "identifier");
+    validateIndexEntry(entry);
+    if (state != IndexState.ACTIVE) {
+      throw new IndexNotActiveException(definition.getFullName(), state);
+    }
+
+    // All rows of an entry are added together, so checking one of them suffices
+    List<byte[]> indexKeys = buildRowKeys(entry, identifier, definition.getFields()).subList(0, 1);
+    if (definition.getRewrittenVersion() < definition.getVersion()) {
+      // The entry might still be stored in a row written by an older version of the definition
+      indexKeys = new ArrayList<byte[]>(indexKeys);
+      for (int version = definition.getRewrittenVersion(); version < definition.getVersion(); version++) {
+        if (hasOnlyNullsAfter(entry, version)) {
+          indexKeys.add(buildRowKeys(entry, identifier, definition.getFields(version)).get(0));
+        }
+      }
+    }
+
+    for (byte[] indexKey : indexKeys) {
+      Get get = new Get(indexKey);
+      get.addFamily(DATA_FAMILY);
+      if (htable.exists(get))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether a query has any result. Only the first matching row is retrieved, without
+   * its data.
+   *
+   * @throws IndexNotActiveException if the index is not {@link IndexState#ACTIVE active}.
+   */
+  public boolean exists(Query query) throws IOException {
+    return exists(htable, createExistsScan(query));
+  }
+
+  /**
+   * Checks for each of the given queries whether it has any result, as {@link #exists(Query)}
+   * does. The queries are performed concurrently.
+   *
+   * @return for each query, in the same order, whether it has a result
+   *
+   * @throws IndexNotActiveException if the index is not {@link IndexState#ACTIVE active}.
+   */
+  public boolean[] existsAll(List<Query> queries) throws IOException, InterruptedException {
+    ArgumentValidator.notNull(queries, "queries");
+    boolean[] exists = new boolean[queries.size()];
+    if (queries.size() <= 1) {
+      for (int i = 0; i < queries.size(); i++) {
+        exists[i] = exists(queries.get(i));
+      }
+      return exists;
+    }
+
+    // Validate all queries before starting any of them
+    List<Scan> scans = new ArrayList<Scan>(queries.size());
+    for (Query query : queries) {
+      scans.add(createExistsScan(query));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(COUNT_THREADS, scans.size()));
+    try {
+      List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(scans.size());
+      for (final Scan scan : scans) {
+        futures.add(executor.submit(new Callable<Boolean>() {
+          public Boolean call() throws Exception {
+            // HTable instances can not be shared between threads
+            HTable queryTable = new HTable(htable.getConfiguration(), htable.getTableName());
+            try {
+              return exists(queryTable, scan);
+            } finally {
+              queryTable.close();
+            }
+          }
+        }));
+      }
+
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          exists[i] = futures.get(i).get();
+        } catch (ExecutionException e) {
+          IOException ioe = new IOException("Error performing query on index " + definition.getFullName());
+          ioe.initCause(e.getCause());
+          throw ioe;
+        }
+      }
+      return exists;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private Scan createExistsScan(Query query) {
+    Scan scan = createScan(query);
+    restrictData(scan, false, Collections.<byte[]>emptyList());
+    scan.setCaching(1);
+    return scan;
+  }
+
+  private static boolean exists(HTable table, Scan scan) throws IOException {
+    ResultScanner scanner = table.getScanner(scan);
+    try {
+      return scanner.next() != null;
+    } finally {
+      scanner.close();
+    }
+  }
+
+  /**
+   * Collects the statistics of the index, by scanning the keys of all its rows.
+   *
+   * <p>While the rows are being rewritten after an update of the definition, only the
+   * fields of the rewritten version are taken into account, since the rows of older
+   * versions do not contain the added fields.
+   */
+  IndexStatistics collectStatistics() throws IOException {
+    List<IndexFieldDefinition> fieldDefs = definition.getFields(definition.getRewrittenVersion());
+    int nameLength = Bytes.toBytes(definition.getFullName()).length;
+    IndexStatisticsCollector collector = new IndexStatisticsCollector(fieldDefs.size(), nameLength);
+
+    KeyRange range = getKeyRange(definition);
+    Scan scan = new Scan(range.getStart(), range.getStop());
+    restrictData(scan, false, Collections.<byte[]>emptyList());
+    scan.setCaching(COUNT_SCANNER_CACHING);
+
+    ResultScanner scanner = htable.getScanner(scan);
+    try {
+      Result row;
+      while ((row = scanner.next()) != null) {
+        byte[] rowKey = row.getRow();
+        int[] fieldEnds = new int[fieldDefs.size()];
+        int pos = nameLength;
+        for (int i = 0; i < fieldEnds.length; i++) {
+          pos = getFieldEnd(fieldDefs.get(i), rowKey, pos);
+          fieldEnds[i] = pos;
+        }
+        collector.add(rowKey, fieldEnds);
+      }
+    } finally {
+      scanner.close();
+    }
+
+    return collector.getStatistics();
+  }
+
+  /**
+   * Estimates the number of results of a query, based on the {@link #getStatistics statistics}
+   * of the index. This does not access the index.
+   *
+   * <p>The rows matching an equals condition on the first field are estimated from the
+   * histogram of the first field. Each further equals condition divides this by the ratio
+   * of the distinct counts of the field prefixes, assuming the values are distributed
+   * uniformly. A range or prefix condition on the first field is estimated from the
+   * histogram, on another field it is assumed to match a third of the rows.
+   *
+   * @return the estimated number of rows, or -1 if no statistics are available
+   *
+   * @throws IndexNotActiveException if the index is not {@link IndexState#ACTIVE active}.
+   */
+  public long estimateRowCount(Query query) {
+    Scan scan = createScan(query);
+    if (statistics == null)
+      return -1;
+    if (statistics.getRowCount() == 0)
+      return 0;
+
+    List<IndexFieldDefinition> fieldDefs = definition.getFields();
+    int eqCount = 0;
+    while (eqCount < fieldDefs.size() && query.getCondition(fieldDefs.get(eqCount).getName()) != null) {
+      eqCount++;
+    }
+    boolean rangeOrPrefix = query.getRangeCondition() != null || query.getPrefixCondition() != null;
+
+    byte[] name = Bytes.toBytes(definition.getFullName());
+    double estimate;
+    if (eqCount == 0) {
+      if (rangeOrPrefix) {
+        estimate = estimateHistogramRange(name, scan.getStartRow(), scan.getStopRow());
+      } else {
+        estimate = statistics.getRowCount();
+      }
+    } else {
+      IndexFieldDefinition firstField = fieldDefs.get(0);
+      byte[] value = fieldToBytes(firstField, query.getCondition(firstField.getName()).getValue(), true);
+      estimate = estimateHistogramValue(value);
+
+      int knownFields = Math.min(eqCount, statistics.getFieldCount());
+      if (knownFields > 1) {
+        estimate *= (double)statistics.getDistinctCount(1) / statistics.getDistinctCount(knownFields);
+      }
+      if (rangeOrPrefix) {
+        estimate *= RANGE_SELECTIVITY;
+      }
+    }
+
+    return estimate > 0 ? Math.max(1, Math.round(estimate)) : 0;
+  }
+
+  /**
+   * Estimates the rows with the given first field value, as the average number of rows per
+   * value of the histogram bucket containing it.
+   */
+  private double estimateHistogramValue(byte[] value) {
+    for (IndexStatistics.HistogramBucket bucket : statistics.getHistogram()) {
+      if (Bytes.compareTo(value, bucket.getUpperBound()) <= 0) {
+        if (Bytes.compareTo(value, bucket.getLowerBound()) < 0)
+          return 0;
+        return (double)bucket.getRowCount() / bucket.getDistinctCount();
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Estimates the rows within a range of row keys, from the histogram buckets it overlaps,
+   * counting half of the rows of the buckets it only partially overlaps.
+   */
+  private double estimateHistogramRange(byte[] name, byte[] startRow, byte[] stopRow) {
+    double estimate = 0;
+    for (IndexStatistics.HistogramBucket bucket : statistics.getHistogram()) {
+      byte[] bucketStart = Bytes.add(name, bucket.getLowerBound());
+      byte[] bucketStop = KeyRange.nextPrefix(Bytes.add(name, bucket.getUpperBound()));
+      if (Bytes.compareTo(stopRow, bucketStart) <= 0 || Bytes.compareTo(startRow, bucketStop) >= 0)
+        continue;
+
+      if (Bytes.compareTo(startRow, bucketStart) <= 0 && Bytes.compareTo(stopRow, bucketStop) >= 0) {
+        estimate += bucket.getRowCount();
+      } else {
+        estimate += bucket.getRowCount() / 2.0;
+      }
+    }
+    return estimate;
+  }
+
+  private static long countRows(HTable table, Scan scan) throws IOException {
+    long count = 0;
+    ResultScanner scanner = table.getScanner(scan);
+    try {
+      while (scanner.next() != null) {
+        count++;
+      }
+    } finally {
+      scanner.close();
+    }
+    return count;
+  }
+
+  /**
+   * With equals conditions on all fields, each identifier occurs at most once.
+   */
+  private boolean needsDistinct(Query query) {
+    return query.isDistinct() && query.getEqConditions().size() < definition.getFields().size();
+  }
+
+  /**
+   * Validates the query and creates the scan over the matching rows.
+   */
+  private Scan createScan(Query query) {
+    if (state != IndexState.ACTIVE) {
+      throw new IndexNotActiveException(definition.getFullName(), state);
+    }
+
     // First validate that all the fields used in the query exist in the index definition
     for (Query.EqualsCondition eqCond : query.getEqConditions()) {
       if (definition.getField(eqCond.getName()) == null) {
@@ -228,6 +980,25 @@ public class Index {
         query.getRangeCondition().getName());
       throw new MalformedQueryException(msg);
     }
+    if (query.getPrefixCondition() != null && definition.getField(query.getPrefixCondition().getName()) == null) {
+      String msg = String.format("The query refers to a field which does not exist in this index: %1$s",
+        query.getPrefixCondition().getName());
+      throw new MalformedQueryException(msg);
+    }
+    if (query.getRangeCondition() != null && query.getPrefixCondition() != null) {
+      throw new MalformedQueryException("A query can not contain both a range and a prefix condition.");
+    }
+
+    // Fields which were added to the index can only be queried once all rows contain them
+    for (Query.EqualsCondition eqCond : query.getEqConditions()) {
+      checkFieldRewritten(eqCond.getName());
+    }
+    if (query.getRangeCondition() != null) {
+      checkFieldRewritten(query.getRangeCondition().getName());
+    }
+    if (query.getPrefixCondition() != null) {
+      checkFieldRewritten(query.getPrefixCondition().getName());
+    }
 
     // Construct from and to keys
 
@@ -239,7 +1010,9 @@ public class Index {
     byte[] toKey = null;
 
     Query.RangeCondition rangeCond = query.getRangeCondition();
+    Query.PrefixCondition prefixCond = query.getPrefixCondition();
     boolean rangeCondSet = false;
+    boolean prefixCondSet = false;
     int usedConditionsCount = 0;
     int i = 0;
     for (; i < fieldDefs.size(); i++) {
@@ -251,6 +1024,21 @@ public class Index {
         byte[] bytes = fieldToBytes(fieldDef, eqCond.getValue(), true);
         fromKeyComponents.add(bytes);
         usedConditionsCount++;
+      } else if (prefixCond != null) {
+        if (!prefixCond.getName().equals(fieldDef.getName())) {
+          throw new MalformedQueryException("Query defines prefix condition on field " + prefixCond.getName() +
+            " but has no equals condition on field " + fieldDef.getName() +
+            " which comes earlier in the index definition.");
+        }
+
+        checkQueryValueType(fieldDef, prefixCond.getPrefix());
+        fromKeyComponents.add(prefixToBytes(fieldDef, prefixCond.getPrefix()));
+        fromKey = concat(fromKeyComponents);
+
+        prefixCondSet = true;
+        usedConditionsCount++;
+
+        break;
       } else if (rangeCond != null) {
         if (!rangeCond.getName().equals(fieldDef.getName())) {
           throw new MalformedQueryException("Query defines range condition on field " + rangeCond.getName() +
@@ -296,7 +1084,8 @@ public class Index {
     }
 
     // Check if we have used all conditions defined in the query
-    if (i < fieldDefs.size() && usedConditionsCount < query.getEqConditions().size() + (rangeCond != null ? 1 : 0)) {
+    int conditionsCount = query.getEqConditions().size() + (rangeCond != null ? 1 : 0) + (prefixCond != null ? 1 : 0);
+    if (i < fieldDefs.size() && usedConditionsCount < conditionsCount) {
       StringBuilder message = new StringBuilder();
       message.append("The query contains conditions on fields which either did not follow immediately on ");
       message.append("the previous equals condition or followed after a range condition on a field. The fields are: ");
@@ -306,42 +1095,96 @@ public class Index {
           message.append(fieldDef.getName());
         } else if (rangeCond != null && rangeCond.getName().equals(fieldDef.getName())) {
           message.append(fieldDef.getName());
+        } else if (prefixCond != null && prefixCond.getName().equals(fieldDef.getName())) {
+          message.append(fieldDef.getName());
         }
         message.append(" ");
       }
       throw new MalformedQueryException(message.toString());
     }
 
-    if (!rangeCondSet) {
-      // Construct fromKey/toKey for the case there were only equals conditions
-      fromKey = concat(fromKeyComponents);
-      toKey = fromKey;
+    Scan scan;
+    if (prefixCondSet) {
+      // All rows starting with the prefix are adjacent, no filter is needed
+      scan = new Scan(fromKey, KeyRange.nextPrefix(fromKey));
+    } else {
+      if (!rangeCondSet) {
+        // Construct fromKey/toKey for the case there were only equals conditions
+        fromKey = concat(fromKeyComponents);
+        toKey = fromKey;
+      }
+      scan = createRangeScan(fromKey, toKey, rangeCondSet ? rangeCond : null);
     }
 
-    Scan scan = new Scan(fromKey);
+    return scan;
+  }
+
+  /**
+   * Creates the scan from the fromKey up to the rows starting with the toKey.
+   *
+   * <p>The bounds are compared with the start of the row keys: the rows which start with
+   * the fromKey or toKey are respectively at or after the start row of the scan, and before
+   * its stop row, unless the bound is exclusive. Therefore no filters are needed.
+   *
+   * @param rangeCond the range condition, or null for a query with only equals conditions
+   */
+  private Scan createRangeScan(byte[] fromKey, byte[] toKey, Query.RangeCondition rangeCond) {
+    boolean rangeCondSet = rangeCond != null;
 
     // Query.MAX_VALUE is a value which should be larger than anything, so cannot be an inclusive upper bound
-    // The importance of this is because for Query.MAX_VALUE, we do a prefix scan so the operator should be
-    // CompareOp.LESS_OR_EQUAL
+    // The importance of this is because for Query.MAX_VALUE, we do a prefix scan so the upper bound should
+    // be inclusive
     boolean upperBoundInclusive = rangeCond != null && (rangeCond.isUpperBoundInclusive() || rangeCond.getToValue() == Query.MAX_VALUE);
-    CompareOp op = rangeCondSet && !upperBoundInclusive ? CompareOp.LESS : CompareOp.LESS_OR_EQUAL;
-    Filter toFilter = new RowFilter(op, new BinaryPrefixComparator(toKey));
-
-    if (rangeCondSet && !rangeCond.isLowerBoundInclusive()) {
-      // TODO: optimize the performance hit caused by the extra filter
-      //  Once the greater filter on the fromKey returns true, it will remain true because
-      //  row keys are sorted. The RowFilter will however keep doing the check again and again
-      //  on each new row key. We need a new filter in HBase, something like the opposite of the
-      //  WhileMatchFilter.
-      FilterList filters = new FilterList(FilterList.Operator.MUST_PASS_ALL);
-      filters.addFilter(new RowFilter(CompareOp.GREATER, new BinaryPrefixComparator(fromKey)));
-      filters.addFilter(toFilter);
-      scan.setFilter(filters);
+    byte[] stopRow = rangeCondSet && !upperBoundInclusive ? toKey : KeyRange.nextPrefix(toKey);
+
+    boolean lowerBoundInclusive = !rangeCondSet || rangeCond.isLowerBoundInclusive();
+    byte[] startRow = lowerBoundInclusive ? fromKey : KeyRange.nextPrefix(fromKey);
+
+    return new Scan(startRow, stopRow);
+  }
+
+  /**
+   * Limits the cells returned by the scan to the data requested by the query.
+   *
+   * <p>A row is only returned by a scan if at least one of its cells is returned, therefore
+   * the first cell of each row is always included, rather than restricting the scan to the
+   * requested columns. Otherwise entries lacking the requested data would not be found.
+   */
+  private void restrictData(Scan scan, boolean includeData, List<byte[]> dataQualifiers) {
+    scan.addFamily(DATA_FAMILY);
+
+    if (includeData && dataQualifiers.isEmpty())
+      return;
+
+    Filter dataFilter;
+    if (!includeData) {
+      dataFilter = new FirstKeyOnlyFilter();
+    } else {
+      // The FirstKeyOnlyFilter needs to come first, so that it sees the first cell
+      FilterList anyFilter = new FilterList(FilterList.Operator.MUST_PASS_ONE);
+      anyFilter.addFilter(new FirstKeyOnlyFilter());
+      for (byte[] qualifier : dataQualifiers) {
+        anyFilter.addFilter(new QualifierFilter(CompareOp.EQUAL, new BinaryComparator(qualifier)));
+      }
+      dataFilter = anyFilter;
+    }
+
+    if (scan.getFilter() == null) {
+      scan.setFilter(dataFilter);
     } else {
-      scan.setFilter(toFilter);
+      FilterList allFilter = new FilterList(FilterList.Operator.MUST_PASS_ALL);
+      allFilter.addFilter(scan.getFilter());
+      allFilter.addFilter(dataFilter);
+      scan.setFilter(allFilter);
     }
+  }
 
-    return new ScannerQueryResult(htable.getScanner(scan), definition.getIdentifierOrder() == Order.DESCENDING);
+  private void checkFieldRewritten(String name) {
+    int fieldVersion = definition.getFieldVersion(name);
+    if (fieldVersion > definition.getRewrittenVersion()) {
+      throw new MalformedQueryException("The query refers to field " + name + " which was added in version " +
+        fieldVersion + " of the index, the existing rows of the index are not yet rewritten to include it.");
+    }
   }
 
   private void checkQueryValueType(IndexFieldDefinition fieldDef, Object value) {
@@ -352,7 +1195,7 @@ public class Index {
     }
   }
 
-  private byte[] concat(List<byte[]> list) {
+  private static byte[] concat(List<byte[]> list) {
     int length = 0;
     for (byte[] bytes : list) {
       length += bytes.length;
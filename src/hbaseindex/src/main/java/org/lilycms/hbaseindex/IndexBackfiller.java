@@ -0,0 +1,293 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.*;
+import org.lilycms.util.ArgumentValidator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fills an index from the existing rows of a source table, while the application
+ * keeps on adding and removing entries for the rows it modifies.
+ *
+ * <p>The index should have been created in the {@link IndexState#BUILDING} state, so that
+ * it can not be queried while incomplete. Once the backfill is done, the index is made
+ * {@link IndexState#ACTIVE}.
+ *
+ * <p>Entries written by the backfill get the timestamp of the most recent cell of the
+ * source row they were derived from, rather than the current time. When the application
+ * removes an entry concurrently with the backfill, the delete is therefore more recent than
+ * the backfilled entry and keeps it hidden, no matter in which order both arrive.
+ *
+ * <p>Rows which are modified in the source table while the backfill scan runs might have
+ * been read before the modification. After the full scan, a catch-up pass re-reads the rows
+ * having cells written since the backfill started, and applies their entries again.
+ */
+public class IndexBackfiller {
+    /** Margin taken on the start time of the catch-up pass, for clock differences between servers. */
+    private static final long CLOCK_SKEW = 30000;
+
+    private final IndexManager indexManager;
+    private final String table;
+    private final String name;
+    private final IndexEntryMapper mapper;
+    private int threads = 4;
+    private int batchSize = 1000;
+    private int scannerCaching = 1000;
+
+    private final AtomicLong rowsRead = new AtomicLong();
+    private final AtomicLong entriesWritten = new AtomicLong();
+    private final AtomicLong rowsCaughtUp = new AtomicLong();
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    public IndexBackfiller(IndexManager indexManager, String table, String name, IndexEntryMapper mapper) {
+        ArgumentValidator.notNull(indexManager, "indexManager");
+        ArgumentValidator.notNull(table, "table");
+        ArgumentValidator.notNull(name, "name");
+        ArgumentValidator.notNull(mapper, "mapper");
+        this.indexManager = indexManager;
+        this.table = table;
+        this.name = name;
+        this.mapper = mapper;
+    }
+
+    /**
+     * The number of regions of the source table which are read concurrently. The default is 4.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Number of threads should be at least 1, got: " + threads);
+        this.threads = threads;
+    }
+
+    /**
+     * The number of index entries sent to HBase at once. The default is 1000.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Batch size should be at least 1, got: " + batchSize);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * The number of rows fetched at once from the source table. The default is 1000.
+     */
+    public void setScannerCaching(int scannerCaching) {
+        this.scannerCaching = scannerCaching;
+    }
+
+    /**
+     * Fills the index from all rows of the given table.
+     *
+     * @see #backfill(String, Scan)
+     */
+    public void backfill(String sourceTable) throws IOException, IndexNotFoundException, InterruptedException {
+        backfill(sourceTable, new Scan());
+    }
+
+    /**
+     * Fills the index from the rows of the given table, and makes it active.
+     *
+     * @param scan determines which rows and columns of the source table are read, its start
+     *             and stop row and its time range are ignored.
+     */
+    public void backfill(String sourceTable, Scan scan)
+            throws IOException, IndexNotFoundException, InterruptedException {
+        ArgumentValidator.notNull(sourceTable, "sourceTable");
+        ArgumentValidator.notNull(scan, "scan");
+
+        Index index = indexManager.getIndex(table, name);
+        if (index.getState() == IndexState.ACTIVE)
+            throw new IllegalStateException("Index " + index.getDefinition().getFullName() + " is already active.");
+
+        // Cells written from now on are looked at again by the catch-up pass. Writes are
+        // timestamped by the region servers, allow for some clock skew between them.
+        long startTime = System.currentTimeMillis() - CLOCK_SKEW;
+
+        log.info("Starting backfill of index " + index.getDefinition().getFullName() + " from table " + sourceTable);
+        runPass(index, sourceTable, scan, false);
+
+        Scan catchUpScan = new Scan(scan);
+        catchUpScan.setTimeRange(startTime, Long.MAX_VALUE);
+        log.info("Read " + rowsRead.get() + " rows, catching up with rows modified since the start of the backfill");
+        runPass(index, sourceTable, catchUpScan, true);
+
+        indexManager.setIndexState(table, name, IndexState.ACTIVE);
+        log.info("Backfill of index " + index.getDefinition().getFullName() + " done: " + entriesWritten.get() +
+                " entries written, " + rowsCaughtUp.get() + " rows caught up");
+    }
+
+    public long getRowsRead() {
+        return rowsRead.get();
+    }
+
+    public long getEntriesWritten() {
+        return entriesWritten.get();
+    }
+
+    /**
+     * The number of rows which were re-read because they were modified during the backfill.
+     */
+    public long getRowsCaughtUp() {
+        return rowsCaughtUp.get();
+    }
+
+    private void runPass(Index index, String sourceTable, Scan scan, boolean catchUp)
+            throws IOException, InterruptedException {
+        List<KeyRange> ranges;
+        HTable table = new HTable(indexManager.getConfiguration(), sourceTable);
+        try {
+            ranges = KeyRange.splitOnRegions(table, HConstants.EMPTY_START_ROW, HConstants.EMPTY_END_ROW);
+        } finally {
+            table.close();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, ranges.size()));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(ranges.size());
+            for (KeyRange range : ranges) {
+                futures.add(executor.submit(new RangeBackfiller(index, sourceTable, scan, range, catchUp)));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    IOException ioe = new IOException("Error backfilling index " +
+                            index.getDefinition().getFullName() + " from table " + sourceTable);
+                    ioe.initCause(e.getCause());
+                    throw ioe;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private class RangeBackfiller implements Callable<Void> {
+        private final Index index;
+        private final String sourceTable;
+        private final Scan baseScan;
+        private final KeyRange range;
+        private final boolean catchUp;
+        private final List<Put> puts = new ArrayList<Put>();
+        private HTable indexTable;
+        private long timestamp;
+
+        public RangeBackfiller(Index index, String sourceTable, Scan baseScan, KeyRange range, boolean catchUp) {
+            this.index = index;
+            this.sourceTable = sourceTable;
+            this.baseScan = baseScan;
+            this.range = range;
+            this.catchUp = catchUp;
+        }
+
+        public Void call() throws Exception {
+            // HTable instances can not be shared between threads
+            HTable table = new HTable(indexManager.getConfiguration(), sourceTable);
+            indexTable = new HTable(indexManager.getConfiguration(), index.getHTable().getTableName());
+            try {
+                backfill(table);
+            } finally {
+                try {
+                    table.close();
+                } finally {
+                    indexTable.close();
+                }
+            }
+            return null;
+        }
+
+        private void backfill(HTable table) throws IOException, InterruptedException {
+            Scan scan = new Scan(baseScan);
+            scan.setStartRow(range.getStart());
+            scan.setStopRow(range.getStop());
+            scan.setCaching(scannerCaching);
+            scan.setCacheBlocks(false);
+
+            IndexEntryMapper.Collector collector = new IndexEntryMapper.Collector() {
+                public void collect(IndexEntry entry, byte[] identifier) throws IOException {
+                    index.validateIndexEntry(entry);
+                    puts.addAll(index.createPuts(entry, identifier, timestamp));
+                    if (puts.size() >= batchSize) {
+                        flush();
+                    }
+                }
+            };
+
+            ResultScanner scanner = table.getScanner(scan);
+            try {
+                Result row;
+                while ((row = scanner.next()) != null) {
+                    if (Thread.interrupted())
+                        throw new InterruptedException();
+
+                    if (catchUp) {
+                        // The time-ranged scan only returned the recent cells, the mapper needs the full row
+                        row = table.get(createGet(row.getRow()));
+                        if (row.isEmpty())
+                            continue;
+                        rowsCaughtUp.incrementAndGet();
+                    } else {
+                        rowsRead.incrementAndGet();
+                    }
+
+                    timestamp = getLatestTimestamp(row);
+                    mapper.map(row, collector);
+                }
+            } finally {
+                scanner.close();
+            }
+
+            flush();
+        }
+
+        private Get createGet(byte[] row) throws IOException {
+            Get get = new Get(row);
+            for (byte[] family : baseScan.getFamilies()) {
+                get.addFamily(family);
+            }
+            return get;
+        }
+
+        private void flush() throws IOException {
+            if (puts.isEmpty())
+                return;
+            int count = puts.size();
+            indexTable.put(puts);
+            entriesWritten.addAndGet(count);
+            puts.clear();
+        }
+    }
+
+    private static long getLatestTimestamp(Result row) {
+        long timestamp = 0;
+        for (KeyValue keyValue : row.raw()) {
+            timestamp = Math.max(timestamp, keyValue.getTimestamp());
+        }
+        return timestamp;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.lilycms.util.ArgumentValidator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds an index over the existing rows of an HBase table by writing the index
+ * rows directly into HFiles, which are then bulk-loaded into the index data table.
+ * This bypasses the write path of HBase, which makes it much faster than calling
+ * {@link Index#addEntry} for each row.
+ *
+ * <p>The source table is read in parallel, one scan per region. The index entries are
+ * obtained from the rows through a user-supplied {@link IndexEntryMapper}. The resulting
+ * cells are buffered in memory, and each time the buffer of a scan is full it is sorted
+ * and written to a new HFile. The HFiles may overlap each other, HBase takes care of
+ * merging them.
+ *
+ * <p>The index should have been created before using {@link IndexManager#createIndex}.
+ */
+public class IndexBulkBuilder {
+    private final Configuration hbaseConf;
+    private final Index index;
+    private final IndexEntryMapper mapper;
+    private int threads = 4;
+    private long bufferSize = 32 * 1024 * 1024;
+    private int scannerCaching = 1000;
+
+    private final AtomicLong rowsRead = new AtomicLong();
+    private final AtomicLong entriesWritten = new AtomicLong();
+    private final AtomicLong filesWritten = new AtomicLong();
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    public IndexBulkBuilder(Configuration hbaseConf, Index index, IndexEntryMapper mapper) {
+        ArgumentValidator.notNull(hbaseConf, "hbaseConf");
+        ArgumentValidator.notNull(index, "index");
+        ArgumentValidator.notNull(mapper, "mapper");
+        this.hbaseConf = hbaseConf;
+        this.index = index;
+        this.mapper = mapper;
+    }
+
+    /**
+     * The number of regions of the source table which are read concurrently. The default is 4.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Number of threads should be at least 1, got: " + threads);
+        this.threads = threads;
+    }
+
+    /**
+     * The amount of index data, in bytes, each thread collects in memory before sorting it
+     * and writing it to an HFile. The default is 32 MB.
+     */
+    public void setBufferSize(long bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * The number of rows fetched at once from the source table. The default is 1000.
+     */
+    public void setScannerCaching(int scannerCaching) {
+        this.scannerCaching = scannerCaching;
+    }
+
+    /**
+     * Builds the index from all rows of the given table.
+     *
+     * @see #build(String, Scan, Path)
+     */
+    public void build(String sourceTable, Path workDir) throws IOException, InterruptedException {
+        build(sourceTable, new Scan(), workDir);
+    }
+
+    /**
+     * Builds the index from the rows of the given table, and loads the result into the
+     * index data table.
+     *
+     * @param scan determines which rows and columns of the source table are read, its start
+     *             and stop row are ignored.
+     * @param workDir directory in which the HFiles are written, this directory should not
+     *                yet exist. The HFiles are moved away from it when they are loaded.
+     */
+    public void build(String sourceTable, Scan scan, Path workDir) throws IOException, InterruptedException {
+        writeFiles(sourceTable, scan, workDir);
+
+        log.info("Loading " + filesWritten.get() + " HFiles with " + entriesWritten.get() + " entries into index " +
+                index.getDefinition().getFullName());
+        new LoadIncrementalHFiles(hbaseConf).doBulkLoad(workDir, index.getHTable());
+    }
+
+    /**
+     * Only writes the HFiles for the index, without loading them. The files are written
+     * in the layout expected by the HBase bulk load: one sub directory per column family.
+     */
+    public void writeFiles(String sourceTable, Scan scan, Path workDir) throws IOException, InterruptedException {
+        ArgumentValidator.notNull(sourceTable, "sourceTable");
+        ArgumentValidator.notNull(scan, "scan");
+        ArgumentValidator.notNull(workDir, "workDir");
+
+        FileSystem fs = workDir.getFileSystem(hbaseConf);
+        if (fs.exists(workDir))
+            throw new IOException("The work directory for building the index should not yet exist: " + workDir);
+        Path familyDir = new Path(workDir, Bytes.toString(Index.DATA_FAMILY));
+        fs.mkdirs(familyDir);
+
+        List<KeyRange> ranges;
+        HTable table = new HTable(hbaseConf, sourceTable);
+        try {
+            ranges = KeyRange.splitOnRegions(table, HConstants.EMPTY_START_ROW, HConstants.EMPTY_END_ROW);
+        } finally {
+            table.close();
+        }
+        long timestamp = System.currentTimeMillis();
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, ranges.size()));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(ranges.size());
+            for (int i = 0; i < ranges.size(); i++) {
+                futures.add(executor.submit(new RangeBuilder(sourceTable, scan, ranges.get(i), fs, familyDir,
+                        "range" + i, timestamp)));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    IOException ioe = new IOException("Error building index " + index.getDefinition().getFullName() +
+                            " from table " + sourceTable);
+                    ioe.initCause(e.getCause());
+                    throw ioe;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public long getRowsRead() {
+        return rowsRead.get();
+    }
+
+    public long getEntriesWritten() {
+        return entriesWritten.get();
+    }
+
+    public long getFilesWritten() {
+        return filesWritten.get();
+    }
+
+    private class RangeBuilder implements Callable<Void> {
+        private final String sourceTable;
+        private final Scan baseScan;
+        private final KeyRange range;
+        private final long timestamp;
+        private final SortBuffer buffer;
+
+        public RangeBuilder(String sourceTable, Scan baseScan, KeyRange range, FileSystem fs, Path familyDir,
+                String fileNamePrefix, long timestamp) {
+            this.sourceTable = sourceTable;
+            this.baseScan = baseScan;
+            this.range = range;
+            this.timestamp = timestamp;
+            this.buffer = new SortBuffer(fs, familyDir, fileNamePrefix);
+        }
+
+        public Void call() throws Exception {
+            HTable table = new HTable(hbaseConf, sourceTable);
+
+            Scan scan = new Scan(baseScan);
+            scan.setStartRow(range.getStart());
+            scan.setStopRow(range.getStop());
+            scan.setCaching(scannerCaching);
+            // Reading the whole table would only push useful blocks out of the cache
+            scan.setCacheBlocks(false);
+
+            IndexEntryMapper.Collector collector = new IndexEntryMapper.Collector() {
+                public void collect(IndexEntry entry, byte[] identifier) throws IOException {
+                    index.validateIndexEntry(entry);
+                    buffer.add(index.createKeyValues(entry, identifier, timestamp));
+                    entriesWritten.incrementAndGet();
+                }
+            };
+
+            try {
+                ResultScanner scanner = table.getScanner(scan);
+                try {
+                    Result row;
+                    while ((row = scanner.next()) != null) {
+                        if (Thread.interrupted())
+                            throw new InterruptedException();
+                        mapper.map(row, collector);
+                        rowsRead.incrementAndGet();
+                    }
+                } finally {
+                    scanner.close();
+                }
+            } finally {
+                table.close();
+            }
+
+            buffer.flush();
+            return null;
+        }
+    }
+
+    /**
+     * Collects cells in memory, and writes them sorted to a new HFile when full.
+     */
+    private class SortBuffer {
+        private final FileSystem fs;
+        private final Path dir;
+        private final String fileNamePrefix;
+        private List<KeyValue> keyValues = new ArrayList<KeyValue>();
+        private long size;
+        private int fileCount;
+
+        public SortBuffer(FileSystem fs, Path dir, String fileNamePrefix) {
+            this.fs = fs;
+            this.dir = dir;
+            this.fileNamePrefix = fileNamePrefix;
+        }
+
+        public void add(List<KeyValue> newKeyValues) throws IOException {
+            for (KeyValue keyValue : newKeyValues) {
+                keyValues.add(keyValue);
+                size += keyValue.getLength();
+            }
+
+            if (size >= bufferSize) {
+                flush();
+            }
+        }
+
+        public void flush() throws IOException {
+            if (keyValues.isEmpty())
+                return;
+
+            Collections.sort(keyValues, KeyValue.COMPARATOR);
+
+            Path file = new Path(dir, fileNamePrefix + "-" + fileCount++);
+            HFile.Writer writer = new HFile.Writer(fs, file, HFile.DEFAULT_BLOCKSIZE, HFile.DEFAULT_COMPRESSION,
+                    KeyValue.KEY_COMPARATOR);
+            try {
+                KeyValue previous = null;
+                for (KeyValue keyValue : keyValues) {
+                    // The same entry can be produced more than once, while an HFile requires increasing keys
+                    if (previous == null || KeyValue.COMPARATOR.compare(previous, keyValue) != 0) {
+                        writer.append(keyValue);
+                    }
+                    previous = keyValue;
+                }
+
+                writer.appendFileInfo(StoreFile.BULKLOAD_TIME_KEY, Bytes.toBytes(System.currentTimeMillis()));
+                writer.appendFileInfo(StoreFile.MAJOR_COMPACTION_KEY, Bytes.toBytes(false));
+            } finally {
+                writer.close();
+            }
+
+            filesWritten.incrementAndGet();
+            keyValues = new ArrayList<KeyValue>();
+            size = 0;
+        }
+    }
+}
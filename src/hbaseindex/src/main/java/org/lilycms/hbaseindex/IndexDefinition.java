@@ -29,8 +29,13 @@ import java.util.*;
  * <p>An index is defined by instantiating an object of this class, adding one
  * or more fields to it using the methods like {@link #addStringField},
  * {@link #addIntegerField}, etc. Finally the index is created by calling
- * {@link IndexManager#createIndex}. After creation, the definition of an index
- * cannot be modified.
+ * {@link IndexManager#createIndex}. After creation, the only modification possible
+ * to the definition of an index is adding fields at the end, see {@link IndexManager#updateIndex}.
+ *
+ * <p>Each such modification results in a new version of the definition. The rows
+ * written before the modification lack the new fields, they are rewritten in the
+ * background. Until this is done, the new fields can not be used in queries:
+ * {@link #getRewrittenVersion} tells up to which version all rows have been rewritten.
  */
 public class IndexDefinition {
   private String table;
@@ -38,6 +43,9 @@ public class IndexDefinition {
   private List<IndexFieldDefinition> fields = new ArrayList<IndexFieldDefinition>();
   private Map<String, IndexFieldDefinition> fieldsByName = new HashMap<String, IndexFieldDefinition>();
   private Order identifierOrder = Order.ASCENDING;
+  private int version = 1;
+  private int rewrittenVersion = 1;
+  private Map<String, Integer> fieldVersions = new HashMap<String, Integer>();
 
   public IndexDefinition(String table, String name) {
     ArgumentValidator.notNull(name, "table");
@@ -52,6 +60,10 @@ public class IndexDefinition {
 
     if (jsonObject.get("identifierOrder") != null)
       identifierOrder = Order.valueOf(jsonObject.get("identifierOrder").getTextValue());
+    if (jsonObject.get("version") != null)
+      version = jsonObject.get("version").getIntValue();
+    if (jsonObject.get("rewrittenVersion") != null)
+      rewrittenVersion = jsonObject.get("rewrittenVersion").getIntValue();
 
     try {
       ObjectNode fields = (ObjectNode)jsonObject.get("fields");
@@ -63,6 +75,8 @@ public class IndexDefinition {
         Constructor<IndexFieldDefinition> constructor = clazz.getConstructor(String.class, ObjectNode.class);
         IndexFieldDefinition field = constructor.newInstance(entry.getKey(), entry.getValue());
         add(field);
+        if (entry.getValue().get("sinceVersion") != null)
+          fieldVersions.put(field.getName(), entry.getValue().get("sinceVersion").getIntValue());
       }
     } catch (Exception e) {
       throw new RuntimeException("Error instantiating IndexDefinition.", e);
@@ -94,6 +108,55 @@ public class IndexDefinition {
     this.identifierOrder = identifierOrder;
   }
 
+  /**
+   * The version of this definition, which starts at 1 and is incremented each time
+   * fields are added to the index.
+   */
+  public int getVersion() {
+    return version;
+  }
+
+  void setVersion(int version) {
+    this.version = version;
+  }
+
+  /**
+   * The version up to which all rows of the index contain all fields. Fields added in later
+   * versions can not yet be queried.
+   */
+  public int getRewrittenVersion() {
+    return rewrittenVersion;
+  }
+
+  void setRewrittenVersion(int rewrittenVersion) {
+    this.rewrittenVersion = rewrittenVersion;
+  }
+
+  /**
+   * The version of the definition in which the given field was added.
+   */
+  public int getFieldVersion(String name) {
+    Integer fieldVersion = fieldVersions.get(name);
+    return fieldVersion != null ? fieldVersion : 1;
+  }
+
+  void setFieldVersion(String name, int version) {
+    fieldVersions.put(name, version);
+  }
+
+  /**
+   * Returns the fields which are part of the rows written with the given version of
+   * this definition.
+   */
+  public List<IndexFieldDefinition> getFields(int version) {
+    List<IndexFieldDefinition> result = new ArrayList<IndexFieldDefinition>(fields.size());
+    for (IndexFieldDefinition field : fields) {
+      if (getFieldVersion(field.getName()) <= version)
+        result.add(field);
+    }
+    return result;
+  }
+
   public IndexFieldDefinition getField(String name) {
     return fieldsByName.get(name);
   }
@@ -119,6 +182,13 @@ public class IndexDefinition {
     return definition;
   }
 
+  public DoubleIndexFieldDefinition addDoubleField(String name) {
+    validateName(name);
+    DoubleIndexFieldDefinition definition = new DoubleIndexFieldDefinition(name);
+    add(definition);
+    return definition;
+  }
+
   public DateTimeIndexFieldDefinition addDateTimeField(String name) {
     validateName(name);
     DateTimeIndexFieldDefinition definition = new DateTimeIndexFieldDefinition(name);
@@ -147,6 +217,13 @@ public class IndexDefinition {
     return definition;
   }
 
+  public BooleanIndexFieldDefinition addBooleanField(String name) {
+    validateName(name);
+    BooleanIndexFieldDefinition definition = new BooleanIndexFieldDefinition(name);
+    add(definition);
+    return definition;
+  }
+
   private void add(IndexFieldDefinition fieldDef) {
     fields.add(fieldDef);
     fieldsByName.put(fieldDef.getName(), fieldDef);
@@ -173,10 +250,15 @@ public class IndexDefinition {
     ObjectNode fieldsJson = object.putObject("fields");
 
     for (IndexFieldDefinition field : fields) {
-      fieldsJson.put(field.getName(), field.toJson());
+      ObjectNode fieldJson = field.toJson();
+      if (getFieldVersion(field.getName()) > 1)
+        fieldJson.put("sinceVersion", getFieldVersion(field.getName()));
+      fieldsJson.put(field.getName(), fieldJson);
     }
 
     object.put("identifierOrder", identifierOrder.toString());
+    object.put("version", version);
+    object.put("rewrittenVersion", rewrittenVersion);
 
     return object;
   }
@@ -17,8 +17,12 @@ package org.lilycms.hbaseindex;
 
 import org.apache.hadoop.hbase.util.Bytes;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -33,23 +37,61 @@ import java.util.Map;
  * but only later on when passing it to a method of {@link Index}.
  *
  * <p>Missing fields will be interpreted as fields with a null value.
+ *
+ * <p>A field can have multiple values, see {@link #addMultiValueField}.
  */
 public class IndexEntry {
     private Map<String, Object> fields = new HashMap<String, Object>();
+    private Map<String, List<Object>> multiValueFields = new HashMap<String, List<Object>>();
     private Map<ByteArrayKey, byte[]> data = new HashMap<ByteArrayKey, byte[]>();
 
     public void addField(String name, Object value) {
+        multiValueFields.remove(name);
         fields.put(name, value);
     }
 
+    /**
+     * Adds a field with multiple values. The entry is indexed once for each value,
+     * or, when there are several multi-valued fields, once for each combination of
+     * their values. All these index rows are written in one batch.
+     *
+     * <p>An empty collection is the same as a null value.
+     */
+    public void addMultiValueField(String name, Collection<?> values) {
+        fields.remove(name);
+        multiValueFields.put(name, new ArrayList<Object>(values));
+    }
+
+    /**
+     * Returns the value of a single-valued field, or null for multi-valued fields.
+     */
     public Object getValue(String name) {
         return fields.get(name);
     }
 
+    /**
+     * Returns the values of a field, for single-valued fields this is a list containing
+     * the value (which might be null).
+     */
+    public List<Object> getValues(String name) {
+        List<Object> values = multiValueFields.get(name);
+        if (values != null && !values.isEmpty())
+            return Collections.unmodifiableList(values);
+        return Collections.singletonList(fields.get(name));
+    }
+
+    public boolean isMultiValued(String name) {
+        return multiValueFields.containsKey(name);
+    }
+
     protected Map<String, Object> getFields() {
         return fields;
     }
 
+    protected Map<String, List<Object>> getMultiValueFields() {
+        return multiValueFields;
+    }
+
     public void addData(byte[] qualifier, byte[] value) {
         data.put(new ByteArrayKey(qualifier), value);
     }
@@ -79,6 +121,11 @@ public class IndexEntry {
             this.hash = Arrays.hashCode(key);
         }
 
+        public ByteArrayKey(byte[] bytes, int offset, int length) {
+            this.key = Arrays.copyOfRange(bytes, offset, offset + length);
+            this.hash = Arrays.hashCode(key);
+        }
+
         public byte[] getKey() {
             return key;
         }
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import org.apache.hadoop.hbase.client.Result;
+
+import java.io.IOException;
+
+/**
+ * Extracts index entries from the rows of the table being indexed, used to build
+ * an index from existing data.
+ *
+ * <p>Implementations are called concurrently from multiple threads, so they should
+ * be threadsafe.
+ */
+public interface IndexEntryMapper {
+    /**
+     * Produces the index entries for one row of the indexed table. A row can produce
+     * any number of entries, including none.
+     */
+    void map(Result row, Collector collector) throws IOException;
+
+    public interface Collector {
+        /**
+         * @param entry the values for the index entry, see {@link Index#addEntry}
+         * @param identifier the identifier of the indexed object, typically the key of the row
+         */
+        void collect(IndexEntry entry, byte[] identifier) throws IOException;
+    }
+}
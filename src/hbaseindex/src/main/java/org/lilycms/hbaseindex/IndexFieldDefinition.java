@@ -75,16 +75,57 @@ public abstract class IndexFieldDefinition {
      */
     public abstract byte[] toBytes(Object value);
 
+    /**
+     * Converts the specified value to the bytes which start the encoded form of every
+     * value having it as prefix, this is used for {@link Query#setPrefixCondition prefix
+     * conditions}. Fields which support prefix conditions should override this method,
+     * the default implementation throws a {@link MalformedQueryException}.
+     */
+    public byte[] toPrefixBytes(Object value) {
+        throw new MalformedQueryException("Prefix conditions are not supported on field " + name + " of type " +
+                type + ".");
+    }
+
     /**
      * For variable-length fields, returns a sequence which should be used
      * to mark the end of the field. It is an error if this sequence occurs
-     * in the value. For fixed-length fields, this should return a zero-length
-     * byte array.
+     * in the value, or if the end of the value followed by the marker forms an
+     * earlier occurrence of it, since the end of the field is found by searching
+     * the first occurrence. For fixed-length fields, this should return a
+     * zero-length byte array.
      */
     public byte[] getEndOfFieldMarker() {
         return EOF_MARKER;
     }
 
+    /**
+     * Returns the number of bytes taken by the non-null value which starts at the given
+     * offset in a row key, not including the end-of-field marker. This is used to find the
+     * boundaries of the fields in existing row keys.
+     *
+     * <p>The default implementation returns the length of fixed-length fields, and searches
+     * the end-of-field marker for variable-length fields. Variable-length fields which are
+     * self-delimiting, rather than using an end-of-field marker, should override this method.
+     *
+     * @param inverted true if the bits of the value are inverted, because of descending order
+     */
+    public int getEncodedLength(byte[] bytes, int offset, boolean inverted) {
+        if (getLength() != -1)
+            return getLength();
+
+        byte[] eof = getEndOfFieldMarker();
+        for (int pos = offset; pos + eof.length <= bytes.length; pos++) {
+            boolean found = true;
+            for (int i = 0; i < eof.length && found; i++) {
+                found = (byte)(inverted ? bytes[pos + i] ^ 0xFF : bytes[pos + i]) == eof[i];
+            }
+            if (found)
+                return pos - offset;
+        }
+
+        throw new IllegalArgumentException("End of field " + name + " not found.");
+    }
+
     public ObjectNode toJson() {
         JsonNodeFactory factory = JsonNodeFactory.instance;
         ObjectNode object = factory.objectNode();
@@ -20,16 +20,15 @@ import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.TableExistsException;
 import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.node.ObjectNode;
+import org.lilycms.util.ArgumentValidator;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.*;
 
 /**
  * Starting point for all the index and query functionality.
@@ -47,10 +46,16 @@ public class IndexManager {
   private HTable dataTable;
 
   private Map<String, Map<String, IndexDefinition>> indexes;
+  private volatile QueryResultCache queryCache;
   
   public static final String DEFAULT_META_TABLE = "indexmeta";
   public static final String DEFAULT_DATA_TABLE = "indexdata";
 
+  static final byte[] META_FAMILY = Bytes.toBytes("meta");
+  static final byte[] CONF_QUALIFIER = Bytes.toBytes("conf");
+  static final byte[] STATE_QUALIFIER = Bytes.toBytes("state");
+  static final byte[] STATS_QUALIFIER = Bytes.toBytes("stats");
+
   /**
    * Constructor.
    *
@@ -79,18 +84,53 @@ public class IndexManager {
   }
 
   /**
-   * Creates a new index.
+   * Enables caching of the results of queries, for the Index instances retrieved from this
+   * IndexManager after this call. The cache is shared by these instances.
+   *
+   * <p>A cached result is used until it is invalidated by a write through one of these
+   * instances which could affect it, or until it becomes older than maxStaleness. Writes
+   * done by other IndexManagers or processes are only seen once the cached results affected
+   * by them have become too old.
+   *
+   * @param maxRows the maximum number of result rows kept in the cache, over all queries.
+   *                Results of more than a tenth of this are not cached.
+   * @param maxStaleness the maximum age of a cached result, in milliseconds
+   */
+  public void enableQueryCache(int maxRows, long maxStaleness) {
+    queryCache = new QueryResultCache(maxRows, maxStaleness);
+  }
+
+  /**
+   * Creates a new index, which is immediately {@link IndexState#ACTIVE active}.
    *
    * <p>This first creates the HBase table for this index, then adds the index
    * definition to the indexmeta table.
    */
-  public synchronized void createIndex(IndexDefinition indexDef) throws IOException {
+  public void createIndex(IndexDefinition indexDef) throws IOException {
+    createIndex(indexDef, IndexState.ACTIVE);
+  }
+
+  /**
+   * Creates a new index in the given state.
+   *
+   * <p>An index which should be filled from existing data is created in the
+   * {@link IndexState#BUILDING} state, and is then filled using an {@link IndexBackfiller},
+   * which makes it active once done.
+   */
+  public synchronized void createIndex(IndexDefinition indexDef, IndexState state) throws IOException {
+    ArgumentValidator.notNull(state, "state");
     if (indexDef.getFields().size() == 0) {
       throw new IllegalArgumentException("An IndexDefinition should contain at least one field.");
     }
 
     byte[] jsonData = serialize(indexDef);
 
+    Result existing = metaTable.get(new Get(Bytes.toBytes(indexDef.getFullName())));
+    if (isPurgePending(existing)) {
+      throw new IllegalStateException("The rows of a previously deleted index with the same name are still " +
+        "being purged, index: " + indexDef.getFullName());
+    }
+
     try {
       IndexManager.createIndexDataTable(hbaseConf, this.dataTableName);
     } catch (TableExistsException x) {
@@ -98,14 +138,216 @@ public class IndexManager {
     }
     
     Put put = new Put(Bytes.toBytes(indexDef.getFullName()));
-    put.add(Bytes.toBytes("meta"), Bytes.toBytes("conf"), jsonData);
+    put.add(META_FAMILY, CONF_QUALIFIER, jsonData);
+    put.add(META_FAMILY, STATE_QUALIFIER, Bytes.toBytes(state.toString()));
     metaTable.put(put);
   }
 
+  /**
+   * Changes the state of an index.
+   *
+   * <p>Index instances which have already been obtained keep the state they had when
+   * they were retrieved, use {@link #getIndex} to get an index with the new state.
+   *
+   * @throws IndexNotFoundException if the index does not exist
+   */
+  public synchronized void setIndexState(String table, String name, IndexState state)
+      throws IOException, IndexNotFoundException {
+    ArgumentValidator.notNull(state, "state");
+    byte[] row = Bytes.toBytes(IndexDefinition.buildIndexName(table, name));
+
+    Put put = new Put(row);
+    put.add(META_FAMILY, STATE_QUALIFIER, Bytes.toBytes(state.toString()));
+    // Only update the state if the index still exists
+    Result result = metaTable.get(new Get(row));
+    byte[] jsonData = result.getValue(META_FAMILY, CONF_QUALIFIER);
+    if (jsonData == null || !metaTable.checkAndPut(row, META_FAMILY, CONF_QUALIFIER, jsonData, put))
+      throw new IndexNotFoundException(table, name);
+
+    invalidateQueryCache(IndexDefinition.buildIndexName(table, name));
+  }
+
+  /**
+   * @throws IndexNotFoundException if the index does not exist
+   */
+  public IndexState getIndexState(String table, String name) throws IOException, IndexNotFoundException {
+    Result result = metaTable.get(new Get(Bytes.toBytes(IndexDefinition.buildIndexName(table, name))));
+    if (result.getValue(META_FAMILY, CONF_QUALIFIER) == null)
+      throw new IndexNotFoundException(table, name);
+    return getState(result);
+  }
+
+  /**
+   * Indexes created before states were introduced have no state, they are active.
+   */
+  private IndexState getState(Result result) {
+    byte[] state = result.getValue(META_FAMILY, STATE_QUALIFIER);
+    return state != null ? IndexState.valueOf(Bytes.toString(state)) : IndexState.ACTIVE;
+  }
+
+  Configuration getConfiguration() {
+    return hbaseConf;
+  }
+
+  /**
+   * Adds fields to an existing index.
+   *
+   * <p>The given definition should contain the same fields, with the same options, as
+   * the current definition of the index, followed by one or more new fields. It becomes the
+   * next version of the definition of the index.
+   *
+   * <p>The existing rows of the index are rewritten in the background to include the new
+   * fields, with null values. Until this is done, queries can not use the new fields. Index
+   * instances which have already been obtained keep using the previous version of the
+   * definition, they should not be used anymore to add entries once this method returns.
+   *
+   * <p>Fields can only be added again once the rewrite of the previous update has
+   * completed, see {@link IndexDefinition#getRewrittenVersion}. An unfinished rewrite can
+   * be restarted with {@link #resumeRewrites}.
+   *
+   * @return the job which rewrites the rows of the index, it has already been started.
+   *
+   * @throws IndexNotFoundException if the index does not exist.
+   * @throws IllegalStateException if the rows of the index are still being rewritten.
+   */
+  public synchronized IndexRewriteJob updateIndex(IndexDefinition indexDef) throws IOException, IndexNotFoundException {
+    byte[] row = Bytes.toBytes(indexDef.getFullName());
+    Result result = metaTable.get(new Get(row));
+
+    byte[] jsonData = result.getValue(META_FAMILY, CONF_QUALIFIER);
+    if (jsonData == null)
+      throw new IndexNotFoundException(indexDef.getTable(), indexDef.getName());
+
+    IndexDefinition currentDef = deserialize(indexDef.getTable(), indexDef.getName(), jsonData);
+    // A second rewrite would not see the rows which the pending one has yet to rewrite
+    if (currentDef.getRewrittenVersion() < currentDef.getVersion()) {
+      throw new IllegalStateException("The rows of index " + indexDef.getFullName() + " are still being " +
+        "rewritten to version " + currentDef.getVersion() + " of its definition.");
+    }
+    List<IndexFieldDefinition> currentFields = currentDef.getFields();
+    List<IndexFieldDefinition> newFields = indexDef.getFields();
+
+    if (newFields.size() <= currentFields.size()) {
+      throw new IllegalArgumentException("The updated definition of index " + indexDef.getFullName() +
+        " does not add any fields.");
+    }
+    if (indexDef.getIdentifierOrder() != currentDef.getIdentifierOrder()) {
+      throw new IllegalArgumentException("The identifier order of index " + indexDef.getFullName() +
+        " can not be changed.");
+    }
+    for (int i = 0; i < currentFields.size(); i++) {
+      IndexFieldDefinition currentField = currentFields.get(i);
+      IndexFieldDefinition newField = newFields.get(i);
+      if (!currentField.getName().equals(newField.getName()) ||
+          !currentField.toJson().toString().equals(newField.toJson().toString())) {
+        throw new IllegalArgumentException("Fields can only be added at the end of an index, field " +
+          currentField.getName() + " of index " + indexDef.getFullName() + " is changed or missing.");
+      }
+    }
+
+    int version = currentDef.getVersion() + 1;
+    indexDef.setVersion(version);
+    indexDef.setRewrittenVersion(currentDef.getRewrittenVersion());
+    for (int i = 0; i < newFields.size(); i++) {
+      String fieldName = newFields.get(i).getName();
+      indexDef.setFieldVersion(fieldName, i < currentFields.size() ? currentDef.getFieldVersion(fieldName) : version);
+    }
+
+    Put put = new Put(row);
+    put.add(META_FAMILY, CONF_QUALIFIER, serialize(indexDef));
+    if (!metaTable.checkAndPut(row, META_FAMILY, CONF_QUALIFIER, jsonData, put)) {
+      throw new IllegalStateException("The definition of index " + indexDef.getFullName() +
+        " was modified concurrently.");
+    }
+
+    Map<String, IndexDefinition> tableIndexes = indexes.get(indexDef.getTable());
+    if (tableIndexes != null && tableIndexes.containsKey(indexDef.getName())) {
+      tableIndexes.put(indexDef.getName(), indexDef);
+    }
+
+    invalidateQueryCache(indexDef.getFullName());
+
+    IndexRewriteJob rewriteJob = new IndexRewriteJob(this, dataTable, indexDef);
+    rewriteJob.start();
+    return rewriteJob;
+  }
+
+  /**
+   * Records that all rows of an index have been rewritten up to the given version of its definition.
+   */
+  synchronized void markRewritten(String table, String name, int version) throws IOException {
+    byte[] row = Bytes.toBytes(IndexDefinition.buildIndexName(table, name));
+    Result result = metaTable.get(new Get(row));
+    byte[] jsonData = result.getValue(META_FAMILY, CONF_QUALIFIER);
+    if (jsonData == null)
+      return;
+
+    IndexDefinition indexDef = deserialize(table, name, jsonData);
+    if (indexDef.getRewrittenVersion() >= version)
+      return;
+    indexDef.setRewrittenVersion(version);
+
+    Put put = new Put(row);
+    put.add(META_FAMILY, CONF_QUALIFIER, serialize(indexDef));
+    if (!metaTable.checkAndPut(row, META_FAMILY, CONF_QUALIFIER, jsonData, put)) {
+      throw new IOException("The definition of index " + indexDef.getFullName() + " was modified concurrently.");
+    }
+
+    invalidateQueryCache(indexDef.getFullName());
+  }
+
+  /**
+   * Restarts the rewrites of indexes to which fields were added, but whose rows were
+   * not all rewritten, for example because the process was stopped.
+   *
+   * @return the started rewrite jobs, an empty list if there were no unfinished rewrites.
+   */
+  public synchronized List<IndexRewriteJob> resumeRewrites() throws IOException {
+    List<IndexRewriteJob> jobs = new ArrayList<IndexRewriteJob>();
+
+    Scan scan = new Scan();
+    scan.addFamily(META_FAMILY);
+    ResultScanner scanner = metaTable.getScanner(scan);
+    try {
+      Result result;
+      while ((result = scanner.next()) != null) {
+        byte[] jsonData = result.getValue(META_FAMILY, CONF_QUALIFIER);
+        if (jsonData == null)
+          continue;
+
+        String[] ti = Bytes.toString(result.getRow()).split("::");
+        IndexDefinition indexDef = deserialize(ti[0], ti[1], jsonData);
+        if (indexDef.getRewrittenVersion() < indexDef.getVersion()) {
+          jobs.add(new IndexRewriteJob(this, dataTable, indexDef));
+        }
+      }
+    } finally {
+      scanner.close();
+    }
+
+    for (IndexRewriteJob job : jobs) {
+      job.start();
+    }
+
+    return jobs;
+  }
+
+  /**
+   * Checks if the given indexmeta row belongs to a deleted index whose rows are not yet purged.
+   */
+  private boolean isPurgePending(Result result) {
+    return result.getValue(META_FAMILY, IndexPurgeJob.PURGE_QUALIFIER) != null &&
+      result.getValue(META_FAMILY, CONF_QUALIFIER) == null;
+  }
+
   private byte[] serialize(IndexDefinition indexDef) throws IOException {
+    return serialize(indexDef.toJson());
+  }
+
+  private static byte[] serialize(ObjectNode json) throws IOException {
     ByteArrayOutputStream os = new ByteArrayOutputStream();
     ObjectMapper mapper = new ObjectMapper();
-    mapper.writeValue(os, indexDef.toJson());
+    mapper.writeValue(os, json);
     return os.toByteArray();
   }
 
@@ -123,17 +365,72 @@ public class IndexManager {
     Get get = new Get(Bytes.toBytes(IndexDefinition.buildIndexName(table, name)));
     Result result = metaTable.get(get);
 
-    if (result.isEmpty())
+    byte[] jsonData = result.getValue(META_FAMILY, CONF_QUALIFIER);
+    if (jsonData == null)
       throw new IndexNotFoundException(table, name);
 
-    byte[] jsonData = result.getValue(Bytes.toBytes("meta"), Bytes.toBytes("conf"));
     IndexDefinition indexDef = deserialize(table, name, jsonData);
 
     HTable htable = new HTable(hbaseConf, dataTableName);
-    Index index = new Index(htable, indexDef);
+    Index index = new Index(htable, indexDef, getState(result), queryCache);
+    index.setStatistics(getStatistics(result));
     return index;
   }
 
+  /**
+   * Collects the statistics of an index and stores them in the index meta table, from where
+   * they are loaded as part of the indexes retrieved afterwards.
+   *
+   * <p>The statistics are collected by scanning the keys of all rows of the index. They
+   * are not maintained by the writes to the index, so this should be called again when the
+   * index has changed considerably.
+   *
+   * @throws IndexNotFoundException if the index does not exist
+   */
+  public IndexStatistics updateStatistics(String table, String name) throws IOException, IndexNotFoundException {
+    Index index = getIndex(table, name);
+    IndexStatistics statistics = index.collectStatistics();
+
+    byte[] row = Bytes.toBytes(index.getDefinition().getFullName());
+    Put put = new Put(row);
+    put.add(META_FAMILY, STATS_QUALIFIER, serialize(statistics.toJson()));
+    // Only store the statistics if the index still exists
+    Result result = metaTable.get(new Get(row));
+    byte[] jsonData = result.getValue(META_FAMILY, CONF_QUALIFIER);
+    if (jsonData == null || !metaTable.checkAndPut(row, META_FAMILY, CONF_QUALIFIER, jsonData, put))
+      throw new IndexNotFoundException(table, name);
+
+    return statistics;
+  }
+
+  /**
+   * Returns the statistics of an index as last collected by {@link #updateStatistics}, or
+   * null if they have never been collected.
+   *
+   * @throws IndexNotFoundException if the index does not exist
+   */
+  public IndexStatistics getStatistics(String table, String name) throws IOException, IndexNotFoundException {
+    Result result = metaTable.get(new Get(Bytes.toBytes(IndexDefinition.buildIndexName(table, name))));
+    if (result.getValue(META_FAMILY, CONF_QUALIFIER) == null)
+      throw new IndexNotFoundException(table, name);
+    return getStatistics(result);
+  }
+
+  private IndexStatistics getStatistics(Result result) throws IOException {
+    byte[] jsonData = result.getValue(META_FAMILY, STATS_QUALIFIER);
+    if (jsonData == null)
+      return null;
+    ObjectMapper mapper = new ObjectMapper();
+    return new IndexStatistics(mapper.readValue(jsonData, 0, jsonData.length, ObjectNode.class));
+  }
+
+  private void invalidateQueryCache(String indexName) {
+    QueryResultCache cache = queryCache;
+    if (cache != null) {
+      cache.invalidate(indexName);
+    }
+  }
+
   public Map<String, IndexDefinition> getTableIndexes(String table) {
     return Collections.unmodifiableMap(indexes.get(table));
   }
@@ -145,13 +442,18 @@ public class IndexManager {
     ResultScanner resScanner = metaTable.getScanner(scan);
     Result[] results = resScanner.next(10000);
     for (Result r: results) {
+      // get the index data, skipping deleted indexes which are still being purged
+      byte[] jsonData = r.getValue(META_FAMILY, CONF_QUALIFIER);
+      if (jsonData == null) {
+        continue;
+      }
+
       // table::index
       String[] ti = Bytes.toString(r.getRow()).split("::");
       if (!indexes.containsKey(ti[0])) {
         indexes.put(ti[0], new TreeMap<String, IndexDefinition>());
       }
-      // get the index data, add it to the map
-      byte[] jsonData = r.getValue(Bytes.toBytes("meta"), Bytes.toBytes("conf"));
+      // add the index definition to the map
       IndexDefinition indexDef = deserialize(ti[0], ti[1], jsonData);
       indexes.get(ti[0]).put(ti[1], indexDef);
     }
@@ -159,25 +461,76 @@ public class IndexManager {
   /**
    * Deletes an index.
    *
-   * <p>This removes the index definition from the index meta table, disables the
-   * index table and deletes it. If this would fail in between any of these operations,
-   * it is up to the administrator to perform the remaining work.
+   * <p>This removes the index definition from the index meta table, after which the
+   * index is no longer available. The rows of the index in the index data table are
+   * then deleted by a background job, which is started before this method returns.
+   * The purge progress is recorded in the index meta table, so that if the purge would
+   * be interrupted, it can be continued using {@link #resumePurges}. As long as the purge
+   * is not finished, no new index with the same name can be created.
+   *
+   * @return the job which purges the rows of the index, it can be used to follow up
+   *         its progress or wait for its completion.
    *
    * @throws IndexNotFoundException if the index does not exist.
    */
-  public synchronized void deleteIndex(String table, String name) throws IOException, IndexNotFoundException {
+  public synchronized IndexPurgeJob deleteIndex(String table, String name) throws IOException, IndexNotFoundException {
     Get get = new Get(Bytes.toBytes(IndexDefinition.buildIndexName(table, name)));
     Result result = metaTable.get(get);
 
-    if (result.isEmpty())
+    byte[] jsonData = result.getValue(META_FAMILY, CONF_QUALIFIER);
+    if (jsonData == null)
       throw new IndexNotFoundException(table, name);
 
-    // TODO what if this fails in between operations? Log this...
+    IndexDefinition indexDef = deserialize(table, name, jsonData);
+
+    // First record the purge plan, only then remove the definition, so that a failure in
+    // between leaves the index in place rather than leaving behind rows nobody knows about.
+    IndexPurgeJob purgeJob = IndexPurgeJob.create(hbaseConf, metaTable, dataTable, indexDef);
 
-    Delete del = new Delete(Bytes.toBytes(IndexDefinition.buildIndexName(table, name)));
+    Delete del = new Delete(Bytes.toBytes(indexDef.getFullName()));
+    del.deleteColumns(META_FAMILY, CONF_QUALIFIER);
+    del.deleteColumns(META_FAMILY, STATS_QUALIFIER);
     metaTable.delete(del);
 
-    //TODO: background mr to delete the indexed rows
+    Map<String, IndexDefinition> tableIndexes = indexes.get(table);
+    if (tableIndexes != null) {
+      tableIndexes.remove(name);
+    }
+
+    invalidateQueryCache(indexDef.getFullName());
+
+    purgeJob.start();
+    return purgeJob;
+  }
+
+  /**
+   * Restarts the purges of deleted indexes which did not run to completion, for example
+   * because the process was stopped.
+   *
+   * @return the started purge jobs, an empty list if there were no unfinished purges.
+   */
+  public synchronized List<IndexPurgeJob> resumePurges() throws IOException {
+    List<IndexPurgeJob> jobs = new ArrayList<IndexPurgeJob>();
+
+    Scan scan = new Scan();
+    scan.addFamily(META_FAMILY);
+    ResultScanner scanner = metaTable.getScanner(scan);
+    try {
+      Result result;
+      while ((result = scanner.next()) != null) {
+        if (isPurgePending(result)) {
+          jobs.add(IndexPurgeJob.load(hbaseConf, metaTableName, dataTableName, result));
+        }
+      }
+    } finally {
+      scanner.close();
+    }
+
+    for (IndexPurgeJob job : jobs) {
+      job.start();
+    }
+
+    return jobs;
   }
 
   /**
@@ -186,7 +539,7 @@ public class IndexManager {
   public static void createIndexMetaTable(Configuration hbaseConf, String metaTableName) throws IOException {
     HBaseAdmin hbaseAdmin = new HBaseAdmin(hbaseConf);
     HTableDescriptor table = new HTableDescriptor(metaTableName);
-    HColumnDescriptor family = new HColumnDescriptor("meta");
+    HColumnDescriptor family = new HColumnDescriptor(META_FAMILY);
     table.addFamily(family);
     hbaseAdmin.createTable(table);
   }
@@ -195,6 +548,8 @@ public class IndexManager {
     HBaseAdmin hbaseAdmin = new HBaseAdmin(hbaseConf);
     HTableDescriptor table = new HTableDescriptor(dataTableName);
     HColumnDescriptor family = new HColumnDescriptor(Index.DATA_FAMILY);
+    // Lets Index.exists skip the store files which do not contain the row
+    family.setBloomFilterType(StoreFile.BloomType.ROW);
     table.addFamily(family);
     hbaseAdmin.createTable(table);
   }
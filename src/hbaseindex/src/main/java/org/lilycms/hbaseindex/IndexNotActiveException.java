@@ -0,0 +1,38 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+/**
+ * Thrown when querying an index which is not in the {@link IndexState#ACTIVE} state.
+ */
+public class IndexNotActiveException extends RuntimeException {
+    private String index;
+    private IndexState state;
+
+    public IndexNotActiveException(String index, IndexState state) {
+        this.index = index;
+        this.state = state;
+    }
+
+    public IndexState getState() {
+        return state;
+    }
+
+    @Override
+    public String getMessage() {
+        return "Index " + index + " can not be queried since it is not active, its state is " + state;
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background job which deletes the rows of a deleted index from the index data table.
+ *
+ * <p>The key range of the index is split on the region boundaries of the data table,
+ * and the resulting ranges are purged in parallel. The deletes are sent in batches,
+ * the overall delete rate can be limited using {@link #setMaxDeletesPerSecond}.
+ *
+ * <p>The progress of each range is checkpointed in the indexmeta table, so that a purge
+ * which got interrupted (for example because the process died) can be continued using
+ * {@link IndexManager#resumePurges}. Once all ranges are purged, the row of the index
+ * in the indexmeta table is removed.
+ *
+ * <p>Instances are obtained from {@link IndexManager#deleteIndex}.
+ */
+public class IndexPurgeJob extends RangeJob {
+    private final Configuration hbaseConf;
+    private final String metaTableName;
+    private final String dataTableName;
+    /** The key from which to continue purging each range. */
+    private final Map<KeyRange, byte[]> resumeKeys = new IdentityHashMap<KeyRange, byte[]>();
+
+    private volatile int maxDeletesPerSecond = DEFAULT_MAX_DELETES_PER_SECOND;
+    /** Guards nextDeleteSlot, separate from the monitor of the job so that stop() never waits for it. */
+    private final Object throttleLock = new Object();
+    private long nextDeleteSlot;
+
+    private final AtomicLong deletedRows = new AtomicLong();
+
+    public static final int DEFAULT_MAX_DELETES_PER_SECOND = 5000;
+    private static final int BATCH_SIZE = 1000;
+
+    /** Column in the indexmeta row of the index which marks a pending purge, contains the end of the key range. */
+    static final byte[] PURGE_QUALIFIER = Bytes.toBytes("purge");
+    /** Prefix for the columns holding the checkpoint of each range, followed by the start key of the range. */
+    private static final byte[] PURGE_RANGE_PREFIX = Bytes.toBytes("purge.");
+
+    private IndexPurgeJob(Configuration hbaseConf, String metaTableName, String dataTableName, String indexName,
+            List<KeyRange> ranges, List<byte[]> resumeKeys) {
+        super("purge", indexName, ranges);
+        this.hbaseConf = hbaseConf;
+        this.metaTableName = metaTableName;
+        this.dataTableName = dataTableName;
+        for (int i = 0; i < ranges.size(); i++) {
+            this.resumeKeys.put(ranges.get(i), resumeKeys.get(i));
+        }
+    }
+
+    /**
+     * Plans the purge of the given index: splits its key range and records the ranges in the
+     * indexmeta table. The job is not started yet.
+     */
+    static IndexPurgeJob create(Configuration hbaseConf, HTable metaTable, HTable dataTable,
+            IndexDefinition definition) throws IOException {
+        KeyRange keyRange = Index.getKeyRange(definition);
+        List<KeyRange> ranges = KeyRange.splitOnRegions(dataTable, keyRange.getStart(), keyRange.getStop());
+
+        List<byte[]> resumeKeys = new ArrayList<byte[]>(ranges.size());
+        Put put = new Put(Bytes.toBytes(definition.getFullName()));
+        put.add(IndexManager.META_FAMILY, PURGE_QUALIFIER, keyRange.getStop());
+        for (KeyRange range : ranges) {
+            put.add(IndexManager.META_FAMILY, Bytes.add(PURGE_RANGE_PREFIX, range.getStart()), range.getStart());
+            resumeKeys.add(range.getStart());
+        }
+        metaTable.put(put);
+
+        return new IndexPurgeJob(hbaseConf, Bytes.toString(metaTable.getTableName()),
+                Bytes.toString(dataTable.getTableName()), definition.getFullName(), ranges, resumeKeys);
+    }
+
+    /**
+     * Restores a purge from the checkpoints stored in the given indexmeta row.
+     */
+    static IndexPurgeJob load(Configuration hbaseConf, String metaTableName, String dataTableName, Result metaRow) {
+        byte[] stop = metaRow.getValue(IndexManager.META_FAMILY, PURGE_QUALIFIER);
+
+        // The range columns are sorted on their start key, each range ends where the next one starts
+        List<byte[]> starts = new ArrayList<byte[]>();
+        List<byte[]> resumeKeys = new ArrayList<byte[]>();
+        NavigableMap<byte[], byte[]> columns = metaRow.getFamilyMap(IndexManager.META_FAMILY);
+        for (Map.Entry<byte[], byte[]> column : columns.entrySet()) {
+            byte[] qualifier = column.getKey();
+            if (qualifier.length > PURGE_RANGE_PREFIX.length && Bytes.startsWith(qualifier, PURGE_RANGE_PREFIX)) {
+                byte[] start = new byte[qualifier.length - PURGE_RANGE_PREFIX.length];
+                System.arraycopy(qualifier, PURGE_RANGE_PREFIX.length, start, 0, start.length);
+                starts.add(start);
+                resumeKeys.add(column.getValue());
+            }
+        }
+
+        List<KeyRange> ranges = new ArrayList<KeyRange>(starts.size());
+        for (int i = 0; i < starts.size(); i++) {
+            ranges.add(new KeyRange(starts.get(i), i + 1 < starts.size() ? starts.get(i + 1) : stop));
+        }
+
+        return new IndexPurgeJob(hbaseConf, metaTableName, dataTableName, Bytes.toString(metaRow.getRow()),
+                ranges, resumeKeys);
+    }
+
+    protected void processRange(KeyRange range) throws IOException, InterruptedException {
+        byte[] resumeKey = resumeKeys.get(range);
+        if (isPurged(range, resumeKey))
+            return;
+
+        HTable dataTable = new HTable(hbaseConf, dataTableName);
+        HTable metaTable = new HTable(hbaseConf, metaTableName);
+        try {
+            Scan scan = new Scan(resumeKey, range.getStop());
+            // We only need the row keys
+            scan.setFilter(new FirstKeyOnlyFilter());
+            scan.setCaching(BATCH_SIZE);
+
+            ResultScanner scanner = dataTable.getScanner(scan);
+            try {
+                ArrayList<Delete> batch = new ArrayList<Delete>(BATCH_SIZE);
+                Result result;
+                while ((result = scanner.next()) != null) {
+                    byte[] row = result.getRow();
+                    batch.add(new Delete(row));
+                    if (batch.size() >= BATCH_SIZE) {
+                        deleteBatch(dataTable, metaTable, range, batch, row);
+                        batch = new ArrayList<Delete>(BATCH_SIZE);
+                    }
+                }
+
+                if (!batch.isEmpty()) {
+                    deleteBatch(dataTable, metaTable, range, batch, null);
+                }
+            } finally {
+                scanner.close();
+            }
+
+            checkpoint(metaTable, range, range.getStop());
+        } finally {
+            dataTable.close();
+            metaTable.close();
+        }
+    }
+
+    private void deleteBatch(HTable dataTable, HTable metaTable, KeyRange range, ArrayList<Delete> batch,
+            byte[] lastRow) throws IOException, InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+
+        throttle(batch.size());
+
+        int size = batch.size();
+        dataTable.delete(batch);
+        deletedRows.addAndGet(size);
+
+        if (lastRow != null) {
+            // Resume right after the last deleted row
+            checkpoint(metaTable, range, Bytes.add(lastRow, new byte[] {0}));
+        }
+    }
+
+    private void checkpoint(HTable metaTable, KeyRange range, byte[] resumeKey) throws IOException {
+        Put put = new Put(Bytes.toBytes(getIndexName()));
+        put.add(IndexManager.META_FAMILY, Bytes.add(PURGE_RANGE_PREFIX, range.getStart()), resumeKey);
+        metaTable.put(put);
+    }
+
+    private boolean isPurged(KeyRange range, byte[] resumeKey) {
+        return Bytes.equals(resumeKey, range.getStop()) ||
+                (range.getStop().length > 0 && Bytes.compareTo(resumeKey, range.getStop()) >= 0);
+    }
+
+    /**
+     * Waits until the given number of deletes is allowed by the maximum delete rate. Each
+     * worker reserves the next free slot, so that the workers continue one after the other
+     * as the rate allows. The sleep happens outside of the lock.
+     */
+    private void throttle(int deletes) throws InterruptedException {
+        int maxPerSecond = maxDeletesPerSecond;
+        if (maxPerSecond <= 0)
+            return;
+
+        long wait;
+        synchronized (throttleLock) {
+            long now = System.currentTimeMillis();
+            if (nextDeleteSlot < now)
+                nextDeleteSlot = now;
+
+            wait = nextDeleteSlot - now;
+            nextDeleteSlot += deletes * 1000L / maxPerSecond;
+        }
+
+        if (wait > 0)
+            Thread.sleep(wait);
+    }
+
+    protected void rangeCompleted(int completed) {
+        log.info("Purged range " + completed + " of " + getRangeCount() + " of index " + getIndexName() +
+                ", total rows deleted: " + deletedRows.get());
+    }
+
+    /**
+     * Removes the row of the index from the indexmeta table, including the purge checkpoints.
+     */
+    protected void complete() throws IOException {
+        HTable metaTable = new HTable(hbaseConf, metaTableName);
+        try {
+            metaTable.delete(new Delete(Bytes.toBytes(getIndexName())));
+        } finally {
+            metaTable.close();
+        }
+        log.info("Finished purge of index " + getIndexName() + ", deleted " + deletedRows.get() + " rows.");
+    }
+
+    /**
+     * The number of rows deleted so far by this job. When the job is a resumed one,
+     * rows deleted before the interruption are not counted.
+     */
+    public long getDeletedRows() {
+        return deletedRows.get();
+    }
+
+    public int getMaxDeletesPerSecond() {
+        return maxDeletesPerSecond;
+    }
+
+    /**
+     * Limits the number of deletes sent per second, over all threads together. A value of
+     * zero or less disables the limit. This can be changed while the job is running.
+     *
+     * <p>The default is {@link #DEFAULT_MAX_DELETES_PER_SECOND}.
+     */
+    public void setMaxDeletesPerSecond(int maxDeletesPerSecond) {
+        this.maxDeletesPerSecond = maxDeletesPerSecond;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background job which rewrites the rows of an index after fields have been added to it,
+ * so that they contain (null values for) the new fields.
+ *
+ * <p>Each row is copied to its new row key, keeping the timestamps of its cells, after
+ * which the old row is deleted. Since the timestamps are kept, an entry which is removed
+ * by the application while the job runs stays removed. Queries which do not use the new
+ * fields can be performed during the rewrite, though they might return an identifier twice
+ * when they pass a row just after it has been copied.
+ *
+ * <p>Once all rows have been rewritten, the rewritten version of the definition in the
+ * indexmeta table is updated, from then on the new fields can be queried. Rewriting is
+ * idempotent, a job which got interrupted can be restarted from scratch using
+ * {@link IndexManager#resumeRewrites}.
+ *
+ * <p>Instances are obtained from {@link IndexManager#updateIndex}.
+ */
+public class IndexRewriteJob extends RangeJob {
+    private final IndexManager indexManager;
+    private final Configuration hbaseConf;
+    private final String dataTableName;
+    private final IndexDefinition definition;
+
+    private final AtomicLong rewrittenRows = new AtomicLong();
+
+    private static final int BATCH_SIZE = 1000;
+
+    IndexRewriteJob(IndexManager indexManager, HTable dataTable, IndexDefinition definition) throws IOException {
+        super("rewrite", definition.getFullName(), splitOnRegions(dataTable, definition));
+        this.indexManager = indexManager;
+        this.hbaseConf = indexManager.getConfiguration();
+        this.dataTableName = Bytes.toString(dataTable.getTableName());
+        this.definition = definition;
+    }
+
+    private static List<KeyRange> splitOnRegions(HTable dataTable, IndexDefinition definition) throws IOException {
+        KeyRange keyRange = Index.getKeyRange(definition);
+        return KeyRange.splitOnRegions(dataTable, keyRange.getStart(), keyRange.getStop());
+    }
+
+    protected void processRange(KeyRange range) throws IOException, InterruptedException {
+        HTable dataTable = new HTable(hbaseConf, dataTableName);
+        try {
+            Scan scan = new Scan(range.getStart(), range.getStop());
+            scan.addFamily(Index.DATA_FAMILY);
+            scan.setCaching(BATCH_SIZE);
+            scan.setCacheBlocks(false);
+
+            List<Put> puts = new ArrayList<Put>(BATCH_SIZE);
+            ArrayList<Delete> deletes = new ArrayList<Delete>(BATCH_SIZE);
+
+            ResultScanner scanner = dataTable.getScanner(scan);
+            try {
+                Result result;
+                while ((result = scanner.next()) != null) {
+                    byte[] newRow = Index.upgradeRowKey(definition, result.getRow());
+                    if (newRow == null)
+                        continue;
+
+                    Put put = new Put(newRow);
+                    for (KeyValue keyValue : result.raw()) {
+                        put.add(keyValue.getFamily(), keyValue.getQualifier(), keyValue.getTimestamp(),
+                                keyValue.getValue());
+                    }
+                    puts.add(put);
+                    deletes.add(new Delete(result.getRow()));
+
+                    if (puts.size() >= BATCH_SIZE) {
+                        writeBatch(dataTable, puts, deletes);
+                    }
+                }
+
+                writeBatch(dataTable, puts, deletes);
+            } finally {
+                scanner.close();
+            }
+        } finally {
+            dataTable.close();
+        }
+    }
+
+    private void writeBatch(HTable dataTable, List<Put> puts, ArrayList<Delete> deletes)
+            throws IOException, InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        if (puts.isEmpty())
+            return;
+
+        int size = puts.size();
+        // The new rows are written before the old ones are removed, so that entries never disappear
+        dataTable.put(puts);
+        dataTable.delete(deletes);
+        rewrittenRows.addAndGet(size);
+
+        puts.clear();
+        deletes.clear();
+    }
+
+    /**
+     * Records in the indexmeta table that the rows have been rewritten to the new version.
+     */
+    protected void complete() throws IOException {
+        indexManager.markRewritten(definition.getTable(), definition.getName(), definition.getVersion());
+        log.info("Finished rewrite of index " + getIndexName() + " to version " + definition.getVersion() +
+                ", rewrote " + rewrittenRows.get() + " rows.");
+    }
+
+    /**
+     * The version of the index definition to which the rows are rewritten.
+     */
+    public int getVersion() {
+        return definition.getVersion();
+    }
+
+    /**
+     * The number of rows rewritten so far by this job.
+     */
+    public long getRewrittenRows() {
+        return rewrittenRows.get();
+    }
+}
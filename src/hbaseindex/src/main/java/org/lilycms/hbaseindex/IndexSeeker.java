@@ -0,0 +1,162 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import java.io.IOException;
+
+/**
+ * Reads the results of a query on an index, which can be positioned on the first result
+ * with an identifier at least as large as a given one. This assumes the results are sorted
+ * in increasing identifier order.
+ *
+ * <p>Rows are read a batch at a time. If the identifier to seek to is beyond the current
+ * batch, the next batches are read, up to {@link #MAX_SKIPPED_BATCHES}. For a
+ * {@link Index#isSeekable seekable} query, the scan is then restarted at the identifier,
+ * so that the rows in between are not read.
+ */
+class IndexSeeker {
+    /** The result of {@link #seek} when there is no row with a large enough identifier. */
+    public static final int END = -1;
+
+    private static final int MAX_SKIPPED_BATCHES = 2;
+    private static final int SEEK_BATCH_SIZE = 10;
+
+    private Index index;
+    private Query query;
+    private boolean seekable;
+    private QueryResult result;
+    private QueryResultBatch batch;
+    private int pos;
+    private int batchSize = BufferedQueryResult.BATCH_SIZE;
+    private boolean end;
+
+    /**
+     * Performs the query, reading its first rows up to the given number.
+     */
+    public IndexSeeker(Index index, Query query, int initialRows) throws IOException {
+        this.index = index;
+        this.query = query;
+        this.seekable = index.isSeekable(query);
+        this.result = seekable ? index.performQuery(query, null, batchSize) : index.performQuery(query);
+        this.batch = new QueryResultBatch(initialRows);
+
+        // The caller only learns about this seeker once it is constructed, so close the
+        // result ourselves if reading the first rows fails
+        try {
+            QueryResultBatch rows = new QueryResultBatch(batchSize);
+            while (batch.size() < initialRows) {
+                if (result.next(rows, Math.min(batchSize, initialRows - batch.size())) == 0) {
+                    end = true;
+                    break;
+                }
+                for (int i = 0; i < rows.size(); i++) {
+                    batch.add(rows, i);
+                }
+            }
+        } catch (IOException e) {
+            result.close();
+            throw e;
+        } catch (RuntimeException e) {
+            result.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks whether all results have been read, in which case the first batch contains all of
+     * them, as long as this seeker has not been moved.
+     */
+    public boolean isComplete() {
+        return end;
+    }
+
+    public Index getIndex() {
+        return index;
+    }
+
+    public Query getQuery() {
+        return query;
+    }
+
+    /**
+     * Makes sure the position is a row of the current batch, reading the next batch if needed.
+     *
+     * @return false if the end of the results is reached
+     */
+    public boolean hasCurrent() throws IOException {
+        while (pos >= batch.size()) {
+            if (end)
+                return false;
+            readBatch();
+        }
+        return true;
+    }
+
+    public QueryResultBatch getBatch() {
+        return batch;
+    }
+
+    public int getPos() {
+        return pos;
+    }
+
+    /**
+     * Moves to the next row.
+     */
+    public void skip() {
+        pos++;
+    }
+
+    /**
+     * Positions this seeker on the first row whose identifier is not smaller than the
+     * identifier of a row of another batch.
+     *
+     * @return 0 if the identifiers are equal, 1 if the identifier of the row this seeker is
+     *         positioned on is larger, or {@link #END} if there is no such row.
+     */
+    public int seek(QueryResultBatch source, int row) throws IOException {
+        int skippedBatches = 0;
+        while (pos >= batch.size() || batch.compareIdentifiers(batch.size() - 1, source, row) < 0) {
+            // The identifier is beyond the current batch
+            if (end) {
+                pos = batch.size();
+                return END;
+            }
+
+            if (seekable && skippedBatches >= MAX_SKIPPED_BATCHES) {
+                result.close();
+                batchSize = SEEK_BATCH_SIZE;
+                result = index.performQuery(query, source.getIdentifier(row), batchSize);
+                skippedBatches = 0;
+            } else {
+                skippedBatches++;
+            }
+            readBatch();
+        }
+
+        pos = batch.seek(pos, source, row);
+        return batch.compareIdentifiers(pos, source, row) == 0 ? 0 : 1;
+    }
+
+    private void readBatch() throws IOException {
+        pos = 0;
+        end = result.next(batch, batchSize) == 0;
+    }
+
+    public void close() {
+        result.close();
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+/**
+ * The life cycle state of an index.
+ *
+ * <p>Entries can be added to and removed from an index in any state, but it can only be
+ * queried when it is {@link #ACTIVE}.
+ */
+public enum IndexState {
+    /** The index is being filled from existing data, see {@link IndexBackfiller}. */
+    BUILDING,
+
+    /** The index is complete and can be queried. */
+    ACTIVE,
+
+    /** The index is taken out of use, it can not be queried. */
+    DISABLED
+}
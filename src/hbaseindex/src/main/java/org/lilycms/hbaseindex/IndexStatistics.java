@@ -0,0 +1,178 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Statistics about the rows of an index, as collected by
+ * {@link IndexManager#updateStatistics}. These are meant for deciding between indexes,
+ * or on the order in which to combine query results, see {@link Index#estimateRowCount}.
+ *
+ * <p>The statistics reflect the index at the time they were collected, they are not
+ * updated by the writes to the index.
+ */
+public class IndexStatistics {
+    private long rowCount;
+    private long[] distinctCounts;
+    private List<HistogramBucket> histogram;
+    private long timestamp;
+
+    IndexStatistics(long rowCount, long[] distinctCounts, List<HistogramBucket> histogram, long timestamp) {
+        this.rowCount = rowCount;
+        this.distinctCounts = distinctCounts;
+        this.histogram = histogram;
+        this.timestamp = timestamp;
+    }
+
+    public IndexStatistics(ObjectNode jsonObject) throws IOException {
+        rowCount = jsonObject.get("rowCount").getLongValue();
+        timestamp = jsonObject.get("timestamp").getLongValue();
+
+        JsonNode distinctCountsJson = jsonObject.get("distinctCounts");
+        distinctCounts = new long[distinctCountsJson.size()];
+        for (int i = 0; i < distinctCounts.length; i++) {
+            distinctCounts[i] = distinctCountsJson.get(i).getLongValue();
+        }
+
+        JsonNode histogramJson = jsonObject.get("histogram");
+        histogram = new ArrayList<HistogramBucket>(histogramJson.size());
+        for (int i = 0; i < histogramJson.size(); i++) {
+            JsonNode bucketJson = histogramJson.get(i);
+            histogram.add(new HistogramBucket(bucketJson.get("lowerBound").getBinaryValue(),
+                    bucketJson.get("upperBound").getBinaryValue(), bucketJson.get("rowCount").getLongValue(),
+                    bucketJson.get("distinctCount").getLongValue()));
+        }
+    }
+
+    /**
+     * The number of rows of the index. For entries with multi-valued fields, each
+     * combination of values is a row.
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * The number of leading fields for which {@link #getDistinctCount distinct counts} are
+     * available. Fields added by an update of the index definition are only included once
+     * all rows have been rewritten.
+     */
+    public int getFieldCount() {
+        return distinctCounts.length;
+    }
+
+    /**
+     * Returns the number of distinct combinations of values of the given number of leading
+     * fields of the index.
+     */
+    public long getDistinctCount(int fieldCount) {
+        if (fieldCount < 1 || fieldCount > distinctCounts.length)
+            throw new IllegalArgumentException("fieldCount should be between 1 and " + distinctCounts.length +
+                    ", got: " + fieldCount);
+        return distinctCounts[fieldCount - 1];
+    }
+
+    /**
+     * Returns the histogram of the values of the first field, in index order. Each bucket
+     * holds roughly the same number of rows, except that a value is never split over
+     * buckets.
+     */
+    public List<HistogramBucket> getHistogram() {
+        return Collections.unmodifiableList(histogram);
+    }
+
+    /**
+     * The time at which the statistics were collected.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public ObjectNode toJson() {
+        JsonNodeFactory factory = JsonNodeFactory.instance;
+        ObjectNode object = factory.objectNode();
+        object.put("rowCount", rowCount);
+        object.put("timestamp", timestamp);
+
+        ArrayNode distinctCountsJson = object.putArray("distinctCounts");
+        for (long distinctCount : distinctCounts) {
+            distinctCountsJson.add(distinctCount);
+        }
+
+        ArrayNode histogramJson = object.putArray("histogram");
+        for (HistogramBucket bucket : histogram) {
+            ObjectNode bucketJson = histogramJson.addObject();
+            bucketJson.put("lowerBound", bucket.lowerBound);
+            bucketJson.put("upperBound", bucket.upperBound);
+            bucketJson.put("rowCount", bucket.rowCount);
+            bucketJson.put("distinctCount", bucket.distinctCount);
+        }
+
+        return object;
+    }
+
+    /**
+     * A range of values of the first field of an index. The bounds are values as encoded in
+     * the row keys, including the field flags and end marker.
+     */
+    public static class HistogramBucket {
+        private byte[] lowerBound;
+        private byte[] upperBound;
+        private long rowCount;
+        private long distinctCount;
+
+        HistogramBucket(byte[] lowerBound, byte[] upperBound, long rowCount, long distinctCount) {
+            this.lowerBound = lowerBound;
+            this.upperBound = upperBound;
+            this.rowCount = rowCount;
+            this.distinctCount = distinctCount;
+        }
+
+        /**
+         * The smallest value in this bucket, inclusive.
+         */
+        public byte[] getLowerBound() {
+            return lowerBound.clone();
+        }
+
+        /**
+         * The largest value in this bucket, inclusive.
+         */
+        public byte[] getUpperBound() {
+            return upperBound.clone();
+        }
+
+        public long getRowCount() {
+            return rowCount;
+        }
+
+        /**
+         * The number of distinct values in this bucket.
+         */
+        public long getDistinctCount() {
+            return distinctCount;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects {@link IndexStatistics} from the row keys of an index, which should be added in
+ * index order.
+ *
+ * <p>Since the rows are sorted, the rows with the same values for the leading fields are
+ * adjacent, so the distinct counts are obtained exactly by counting how often these values
+ * change. For the same reason the histogram can be built in one pass: rows are added to
+ * the last bucket until it reaches the target size, and when there are twice as many
+ * buckets as wanted, adjacent buckets are merged and the target size doubles.
+ */
+class IndexStatisticsCollector {
+    private static final int HISTOGRAM_BUCKETS = 64;
+
+    private int prefixLength;
+    private long rowCount;
+    private long[] distinctCounts;
+    private byte[] previousKey;
+    private int[] previousFieldEnds;
+
+    private List<Bucket> buckets = new ArrayList<Bucket>();
+    private Bucket lastBucket;
+    private long bucketTarget = 1;
+
+    /**
+     * @param fieldCount the number of leading fields for which to collect distinct counts
+     * @param prefixLength the length of the prefix of the row keys before the first field
+     */
+    public IndexStatisticsCollector(int fieldCount, int prefixLength) {
+        this.prefixLength = prefixLength;
+        this.distinctCounts = new long[fieldCount];
+    }
+
+    /**
+     * @param fieldEnds for each field, the position in the row key right after it
+     */
+    public void add(byte[] rowKey, int[] fieldEnds) {
+        rowCount++;
+
+        int equalFields = 0;
+        if (previousKey != null) {
+            while (equalFields < distinctCounts.length && fieldEnds[equalFields] == previousFieldEnds[equalFields] &&
+                    Bytes.compareTo(rowKey, 0, fieldEnds[equalFields], previousKey, 0, fieldEnds[equalFields]) == 0) {
+                equalFields++;
+            }
+        }
+        for (int i = equalFields; i < distinctCounts.length; i++) {
+            distinctCounts[i]++;
+        }
+
+        if (equalFields == 0) {
+            addFirstFieldValue(Arrays.copyOfRange(rowKey, prefixLength, fieldEnds[0]));
+        } else {
+            lastBucket.rowCount++;
+        }
+
+        previousKey = rowKey;
+        previousFieldEnds = fieldEnds;
+    }
+
+    private void addFirstFieldValue(byte[] value) {
+        if (lastBucket != null && lastBucket.rowCount < bucketTarget) {
+            lastBucket.upperBound = value;
+            lastBucket.rowCount++;
+            lastBucket.distinctCount++;
+            return;
+        }
+
+        if (lastBucket != null) {
+            buckets.add(lastBucket);
+            if (buckets.size() == 2 * HISTOGRAM_BUCKETS) {
+                mergeBuckets();
+            }
+        }
+        lastBucket = new Bucket(value);
+    }
+
+    private void mergeBuckets() {
+        List<Bucket> merged = new ArrayList<Bucket>(HISTOGRAM_BUCKETS);
+        for (int i = 0; i < buckets.size(); i += 2) {
+            Bucket bucket = buckets.get(i);
+            Bucket next = buckets.get(i + 1);
+            bucket.upperBound = next.upperBound;
+            bucket.rowCount += next.rowCount;
+            bucket.distinctCount += next.distinctCount;
+            merged.add(bucket);
+        }
+        buckets = merged;
+        bucketTarget *= 2;
+    }
+
+    public IndexStatistics getStatistics() {
+        List<IndexStatistics.HistogramBucket> histogram = new ArrayList<IndexStatistics.HistogramBucket>();
+        for (Bucket bucket : buckets) {
+            histogram.add(bucket.toHistogramBucket());
+        }
+        if (lastBucket != null) {
+            histogram.add(lastBucket.toHistogramBucket());
+        }
+
+        return new IndexStatistics(rowCount, distinctCounts.clone(), histogram, System.currentTimeMillis());
+    }
+
+    private static class Bucket {
+        private byte[] lowerBound;
+        private byte[] upperBound;
+        private long rowCount = 1;
+        private long distinctCount = 1;
+
+        private Bucket(byte[] value) {
+            this.lowerBound = value;
+            this.upperBound = value;
+        }
+
+        private IndexStatistics.HistogramBucket toHistogramBucket() {
+            return new IndexStatistics.HistogramBucket(lowerBound, upperBound, rowCount, distinctCount);
+        }
+    }
+}
@@ -20,18 +20,28 @@ public enum IndexValueType {
     INTEGER(java.lang.Integer.class),
     LONG(java.lang.Long.class),
     FLOAT(java.lang.Float.class),
-    DATETIME(java.util.Date.class),
+    DOUBLE(java.lang.Double.class),
+    DATETIME(java.util.Date.class, java.util.Calendar.class),
     DECIMAL(java.math.BigDecimal.class),
-    BYTES(byte[].class);
+    BYTES(byte[].class),
+    BOOLEAN(java.lang.Boolean.class);
 
     private Class clazz;
+    private Class[] alternativeClasses;
 
-    private IndexValueType(Class clazz) {
+    private IndexValueType(Class clazz, Class... alternativeClasses) {
         this.clazz = clazz;
+        this.alternativeClasses = alternativeClasses;
     }
 
     public boolean supportsType(Class clazz) {
-        return this.clazz.isAssignableFrom(clazz);
+        if (this.clazz.isAssignableFrom(clazz))
+            return true;
+        for (Class alternativeClass : alternativeClasses) {
+            if (alternativeClass.isAssignableFrom(clazz))
+                return true;
+        }
+        return false;
     }
 
     public Class getType() {
@@ -18,22 +18,58 @@ package org.lilycms.hbaseindex;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.codehaus.jackson.node.ObjectNode;
 
+/**
+ * An integer field in an index.
+ *
+ * <p>By default values are stored in 4 bytes. When most values are small, the
+ * {@link #setVariableLength variable-length} encoding gives shorter row keys.
+ */
 public class IntegerIndexFieldDefinition extends IndexFieldDefinition {
+    private boolean variableLength = false;
+
     public IntegerIndexFieldDefinition(String name) {
         super(name, IndexValueType.INTEGER);
     }
 
     public IntegerIndexFieldDefinition(String name, ObjectNode jsonObject) {
         super(name, IndexValueType.INTEGER, jsonObject);
+
+        if (jsonObject.get("variableLength") != null)
+            this.variableLength = jsonObject.get("variableLength").getBooleanValue();
+    }
+
+    public boolean isVariableLength() {
+        return variableLength;
+    }
+
+    /**
+     * Indicates if values should be stored using a variable number of bytes, from 1 byte
+     * for values close to zero up to 5 bytes. The encoding starts with a header
+     * byte telling the length of the value, and values keep sorting correctly.
+     *
+     * <p>This changes the format of the index rows, so it can only be set on new indexes.
+     */
+    public void setVariableLength(boolean variableLength) {
+        this.variableLength = variableLength;
     }
 
     @Override
     public int getLength() {
-        return Bytes.SIZEOF_INT;
+        return variableLength ? -1 : Bytes.SIZEOF_INT;
+    }
+
+    @Override
+    public int getEncodedLength(byte[] bytes, int offset, boolean inverted) {
+        if (variableLength)
+            return VarLongEncoding.getEncodedLength(bytes, offset, inverted);
+        return super.getEncodedLength(bytes, offset, inverted);
     }
 
     @Override
     public byte[] toBytes(Object value) {
+        if (variableLength)
+            return VarLongEncoding.encode((Integer)value);
+
         byte[] bytes = new byte[getLength()];
         int integer = (Integer)value;
         Bytes.putInt(bytes, 0, integer);
@@ -44,4 +80,11 @@ public class IntegerIndexFieldDefinition extends IndexFieldDefinition {
 
         return bytes;
     }
+
+    @Override
+    public ObjectNode toJson() {
+        ObjectNode object = super.toJson();
+        object.put("variableLength", variableLength);
+        return object;
+    }
 }
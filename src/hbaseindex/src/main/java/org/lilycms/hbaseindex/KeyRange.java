@@ -0,0 +1,109 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A range of row keys, start inclusive and stop exclusive. An empty stop key
+ * stands for the end of the table.
+ *
+ * <p>This is used to split scans over large key ranges into parts which can be
+ * handled in parallel.
+ */
+class KeyRange {
+    private final byte[] start;
+    private final byte[] stop;
+
+    public KeyRange(byte[] start, byte[] stop) {
+        this.start = start;
+        this.stop = stop;
+    }
+
+    public byte[] getStart() {
+        return start;
+    }
+
+    public byte[] getStop() {
+        return stop;
+    }
+
+    public boolean contains(byte[] key) {
+        return Bytes.compareTo(key, start) >= 0 && (stop.length == 0 || Bytes.compareTo(key, stop) < 0);
+    }
+
+    /**
+     * Splits the key range [start, stop) on the region boundaries of the given table.
+     * The returned ranges are in key order and together cover exactly the requested range.
+     */
+    public static List<KeyRange> splitOnRegions(HTable htable, byte[] start, byte[] stop) throws IOException {
+        Pair<byte[][], byte[][]> regionKeys = htable.getStartEndKeys();
+        byte[][] regionStarts = regionKeys.getFirst();
+        byte[][] regionEnds = regionKeys.getSecond();
+
+        List<KeyRange> ranges = new ArrayList<KeyRange>(regionStarts.length);
+        for (int i = 0; i < regionStarts.length; i++) {
+            byte[] regionStart = regionStarts[i];
+            byte[] regionEnd = regionEnds[i];
+
+            // Skip the regions which do not overlap with the requested range
+            if (stop.length > 0 && Bytes.compareTo(regionStart, stop) >= 0)
+                continue;
+            if (regionEnd.length > 0 && Bytes.compareTo(regionEnd, start) <= 0)
+                continue;
+
+            byte[] rangeStart = Bytes.compareTo(regionStart, start) > 0 ? regionStart : start;
+            byte[] rangeStop = regionEnd.length == 0 || (stop.length > 0 && Bytes.compareTo(regionEnd, stop) > 0) ?
+                    stop : regionEnd;
+            ranges.add(new KeyRange(rangeStart, rangeStop));
+        }
+
+        if (ranges.isEmpty()) {
+            ranges.add(new KeyRange(start, stop));
+        }
+
+        return ranges;
+    }
+
+    /**
+     * Returns the smallest key which is larger than all keys starting with the given prefix.
+     */
+    public static byte[] nextPrefix(byte[] prefix) {
+        byte[] result = new byte[prefix.length];
+        System.arraycopy(prefix, 0, result, 0, prefix.length);
+        for (int i = result.length - 1; i >= 0; i--) {
+            if (result[i] != (byte)0xFF) {
+                result[i]++;
+                byte[] truncated = new byte[i + 1];
+                System.arraycopy(result, 0, truncated, 0, i + 1);
+                return truncated;
+            }
+        }
+        // The prefix consists only of 0xFF bytes, there is no upper bound
+        return new byte[0];
+    }
+
+    @Override
+    public String toString() {
+        return "[" + Bytes.toStringBinary(start) + ", " + Bytes.toStringBinary(stop) + ")";
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import java.io.IOException;
+
+/**
+ * Base class for QueryResults which merge two sorted QueryResults.
+ *
+ * <p>The input results are read in batches, which are merged into batches of results by
+ * {@link #merge}.
+ */
+abstract class MergeQueryResult extends BufferedQueryResult {
+    protected final QueryResult result1;
+    protected final QueryResult result2;
+    protected final QueryResultBatch batch1 = new QueryResultBatch(BATCH_SIZE);
+    protected final QueryResultBatch batch2 = new QueryResultBatch(BATCH_SIZE);
+    /** The current row of each of the input batches. */
+    protected int pos1;
+    protected int pos2;
+    private boolean end1;
+    private boolean end2;
+
+    public MergeQueryResult(QueryResult result1, QueryResult result2) {
+        this.result1 = result1;
+        this.result2 = result2;
+    }
+
+    /**
+     * Makes sure {@link #pos1} is a row of {@link #batch1}, reading the next batch of the
+     * first result when needed.
+     *
+     * @return false if the end of the first result is reached.
+     */
+    protected boolean has1() throws IOException {
+        if (pos1 < batch1.size())
+            return true;
+        if (end1)
+            return false;
+        pos1 = 0;
+        end1 = result1.next(batch1, BATCH_SIZE) == 0;
+        return !end1;
+    }
+
+    /**
+     * See {@link #has1}.
+     */
+    protected boolean has2() throws IOException {
+        if (pos2 < batch2.size())
+            return true;
+        if (end2)
+            return false;
+        pos2 = 0;
+        end2 = result2.next(batch2, BATCH_SIZE) == 0;
+        return !end2;
+    }
+
+    public void close() {
+        result1.close();
+        result2.close();
+    }
+}
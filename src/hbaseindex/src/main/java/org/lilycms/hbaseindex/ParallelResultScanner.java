@@ -0,0 +1,208 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A ResultScanner which scans a number of key ranges concurrently, typically the parts
+ * of a scan which fall in the different regions of a table.
+ *
+ * <p>Each range is read by a task on a fixed-size thread pool, which puts the rows in a
+ * bounded queue. In ordered mode, each range has its own queue and the queues are read one
+ * after the other, so the rows are returned in key order, while the ranges which come next
+ * are already being read. In unordered mode, all ranges share one queue and the rows are
+ * returned as they arrive.
+ *
+ * <p>The thread pool ends when all ranges have been read, or when the scanner is closed.
+ */
+class ParallelResultScanner extends BaseResultScanner {
+    private static final Object END_OF_RANGE = new Object();
+    private static final int QUEUE_CAPACITY = 1000;
+
+    private final Configuration hbaseConf;
+    private final byte[] tableName;
+    private final ExecutorService executor;
+    private final List<BlockingQueue<Object>> queues;
+    private final boolean ordered;
+    private final int rangeCount;
+    private int currentQueue;
+    private int finishedRanges;
+    private boolean done;
+    private volatile boolean closed;
+
+    public ParallelResultScanner(HTable htable, Scan scan, List<KeyRange> ranges, int threads, boolean ordered)
+            throws IOException {
+        this.hbaseConf = htable.getConfiguration();
+        this.tableName = htable.getTableName();
+        this.ordered = ordered;
+        this.rangeCount = ranges.size();
+
+        executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, ranges.size())), new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "index-scan-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        queues = new ArrayList<BlockingQueue<Object>>(ordered ? ranges.size() : 1);
+        if (!ordered) {
+            queues.add(new LinkedBlockingQueue<Object>(QUEUE_CAPACITY));
+        }
+
+        // The tasks are started in key order, so the range read by the caller is always being read
+        for (KeyRange range : ranges) {
+            BlockingQueue<Object> queue;
+            if (ordered) {
+                queue = new LinkedBlockingQueue<Object>(QUEUE_CAPACITY);
+                queues.add(queue);
+            } else {
+                queue = queues.get(0);
+            }
+
+            Scan rangeScan = new Scan(scan);
+            rangeScan.setStartRow(range.getStart());
+            rangeScan.setStopRow(range.getStop());
+            executor.execute(new RangeScanner(rangeScan, queue));
+        }
+
+        // No more tasks will be added, the threads end when all tasks are done
+        executor.shutdown();
+    }
+
+    public Result next() throws IOException {
+        while (!done) {
+            BlockingQueue<Object> queue;
+            if (ordered) {
+                if (currentQueue == queues.size()) {
+                    done = true;
+                    break;
+                }
+                queue = queues.get(currentQueue);
+            } else {
+                if (finishedRanges == rangeCount) {
+                    done = true;
+                    break;
+                }
+                queue = queues.get(0);
+            }
+
+            Object item;
+            try {
+                item = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new InterruptedIOException("Interrupted while waiting for the next row.");
+            }
+
+            if (item == END_OF_RANGE) {
+                if (ordered) {
+                    // Release the rows of the finished range
+                    queues.set(currentQueue, null);
+                    currentQueue++;
+                } else {
+                    finishedRanges++;
+                }
+            } else if (item instanceof Throwable) {
+                close();
+                IOException e = new IOException("Error scanning a region of the index.");
+                e.initCause((Throwable)item);
+                throw e;
+            } else {
+                return (Result)item;
+            }
+        }
+        return null;
+    }
+
+    public void close() {
+        done = true;
+        closed = true;
+        // Do not interrupt the workers: interrupting a thread inside an HBase RPC can close the
+        // shared connection. The workers notice the closed flag instead.
+        executor.shutdown();
+    }
+
+    private class RangeScanner implements Runnable {
+        private final Scan scan;
+        private final BlockingQueue<Object> queue;
+
+        public RangeScanner(Scan scan, BlockingQueue<Object> queue) {
+            this.scan = scan;
+            this.queue = queue;
+        }
+
+        public void run() {
+            HTable table = null;
+            try {
+                // HTable instances can not be shared between threads
+                table = new HTable(hbaseConf, tableName);
+                ResultScanner scanner = table.getScanner(scan);
+                try {
+                    Result result;
+                    while ((result = scanner.next()) != null) {
+                        put(result);
+                    }
+                } finally {
+                    scanner.close();
+                }
+                put(END_OF_RANGE);
+            } catch (InterruptedException e) {
+                // The scanner was closed
+            } catch (Throwable t) {
+                try {
+                    put(t);
+                } catch (InterruptedException e) {
+                    // The scanner was closed
+                }
+            } finally {
+                if (table != null) {
+                    try {
+                        table.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+        }
+
+        /**
+         * Waits until there is room in the queue, checking the closed flag regularly so that
+         * the worker ends soon after the scanner is closed.
+         */
+        private void put(Object item) throws InterruptedException {
+            while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                if (closed)
+                    throw new InterruptedException();
+            }
+        }
+    }
+}
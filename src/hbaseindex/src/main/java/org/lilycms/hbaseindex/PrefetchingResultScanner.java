@@ -0,0 +1,140 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A ResultScanner which fetches the next batch of rows from another ResultScanner on a
+ * background thread, while the caller processes the current batch.
+ *
+ * <p>This is a double buffer: the background thread fetches one batch ahead, and waits
+ * until the caller has finished the current batch before handing over the next one. Errors
+ * of the background thread are thrown to the caller once it reaches the failed batch.
+ *
+ * <p>The wrapped scanner is only used, and closed, by the background thread.
+ */
+class PrefetchingResultScanner extends BaseResultScanner {
+    private static final Object END_OF_SCAN = new Object();
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    private final ResultScanner scanner;
+    private final int batchSize;
+    private final SynchronousQueue<Object> handOver = new SynchronousQueue<Object>();
+    private final Thread fetcher;
+    private Result[] batch;
+    private int batchPos;
+    private boolean done;
+    private volatile boolean closed;
+
+    public PrefetchingResultScanner(ResultScanner scanner, int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Batch size should be at least 1, got: " + batchSize);
+        this.scanner = scanner;
+        this.batchSize = batchSize;
+
+        fetcher = new Thread(new Fetcher(), "index-prefetch-" + THREAD_COUNTER.incrementAndGet());
+        fetcher.setDaemon(true);
+        fetcher.start();
+    }
+
+    public Result next() throws IOException {
+        while (batch == null || batchPos == batch.length) {
+            if (done)
+                return null;
+
+            Object item;
+            try {
+                item = handOver.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new InterruptedIOException("Interrupted while waiting for the next rows.");
+            }
+
+            if (item == END_OF_SCAN) {
+                done = true;
+                batch = null;
+                return null;
+            } else if (item instanceof Throwable) {
+                done = true;
+                batch = null;
+                IOException e = new IOException("Error fetching the next rows.");
+                e.initCause((Throwable)item);
+                throw e;
+            }
+
+            batch = (Result[])item;
+            batchPos = 0;
+        }
+
+        Result result = batch[batchPos];
+        // Do not keep the rows in memory longer than needed
+        batch[batchPos++] = null;
+        return result;
+    }
+
+    public void close() {
+        done = true;
+        batch = null;
+        // The fetcher is not interrupted, since interrupting a thread inside an HBase RPC can
+        // close the shared connection. It notices the closed flag instead.
+        closed = true;
+    }
+
+    private class Fetcher implements Runnable {
+        public void run() {
+            try {
+                while (!closed) {
+                    Result[] results = scanner.next(batchSize);
+                    if (results == null || results.length == 0) {
+                        put(END_OF_SCAN);
+                        break;
+                    }
+                    put(results);
+                }
+            } catch (InterruptedException e) {
+                // The scanner was closed
+            } catch (Throwable t) {
+                try {
+                    put(t);
+                } catch (InterruptedException e) {
+                    // The scanner was closed
+                }
+            } finally {
+                scanner.close();
+            }
+        }
+
+        /**
+         * Waits until the caller takes the item, checking the closed flag regularly so that
+         * the fetcher ends soon after the scanner is closed.
+         */
+        private void put(Object item) throws InterruptedException {
+            while (!handOver.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                if (closed)
+                    throw new InterruptedException();
+            }
+        }
+    }
+}
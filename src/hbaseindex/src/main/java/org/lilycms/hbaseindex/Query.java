@@ -15,6 +15,9 @@
  */
 package org.lilycms.hbaseindex;
 
+import org.apache.hadoop.hbase.util.Bytes;
+import org.lilycms.util.ArgumentValidator;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -25,8 +28,8 @@ import java.util.List;
  * to it, and then passing it to {@link Index#performQuery}.
  *
  * <p>A query can contain equals conditions on zero or more fields,
- * and at most one range condition. The range condition should always
- * be on the last used field. A query does not need to use all fields
+ * and at most one range or prefix condition. The range or prefix condition
+ * should always be on the last used field. A query does not need to use all fields
  * defined in the index, but you have to use them 'left to right'.
  *
  * <p>The structural validity of the query will be checked once the
@@ -36,6 +39,14 @@ import java.util.List;
 public class Query {
     private List<EqualsCondition> eqConditions = new ArrayList<EqualsCondition>();
     private RangeCondition rangeCondition;
+    private PrefixCondition prefixCondition;
+    private boolean distinct;
+    private boolean includeData = true;
+    private List<byte[]> dataQualifiers = new ArrayList<byte[]>();
+    private int parallelism = 1;
+    private boolean preserveOrder = true;
+    private int prefetchSize;
+    private boolean reverse;
 
     public static final Object MIN_VALUE = new Object() {
         @Override
@@ -91,6 +102,152 @@ public class Query {
         rangeCondition = new RangeCondition(fieldName, fromValue, toValue, lowerBoundInclusive, upperBoundInclusive);
     }
 
+    /**
+     * Indicates that each identifier should be returned only once. An identifier can
+     * otherwise be returned several times when it was indexed with multi-valued fields
+     * (see {@link IndexEntry#addMultiValueField}) and the query does not have an equals
+     * condition on each of them.
+     *
+     * <p>The identifiers returned so far are then remembered by the {@link QueryResult},
+     * which takes memory in proportion to the number of results.
+     */
+    public void setDistinct(boolean distinct) {
+        this.distinct = distinct;
+    }
+
+    public boolean isDistinct() {
+        return distinct;
+    }
+
+    /**
+     * Sets a condition which searches the values of the given field starting with the
+     * given prefix. This is supported on string fields and variable-length byte array
+     * fields. It is performed as a scan over exactly the rows starting with the prefix.
+     *
+     * <p>For string fields, the prefix is subject to the same case folding and byte
+     * encoding as the values, see {@link StringIndexFieldDefinition#toPrefixBytes}.
+     *
+     * <p>A query can not have both a prefix and a range condition.
+     */
+    public void setPrefixCondition(String fieldName, Object prefix) {
+        ArgumentValidator.notNull(fieldName, "fieldName");
+        ArgumentValidator.notNull(prefix, "prefix");
+        prefixCondition = new PrefixCondition(fieldName, prefix);
+    }
+
+    public PrefixCondition getPrefixCondition() {
+        return prefixCondition;
+    }
+
+    /**
+     * Indicates if the data stored in the index entries (see {@link IndexEntry#addData})
+     * should be fetched. When only the identifiers are needed, setting this to false
+     * reduces the amount of bytes transferred for each result. The default is true.
+     */
+    public void setIncludeData(boolean includeData) {
+        this.includeData = includeData;
+    }
+
+    public boolean isIncludeData() {
+        return includeData;
+    }
+
+    /**
+     * Adds a data qualifier to fetch. When qualifiers are added, only the data for these
+     * qualifiers is fetched, rather than all data of the index entries. Data which is not
+     * fetched is not available from the {@link QueryResult}.
+     *
+     * <p>This has no effect when {@link #setIncludeData} is false.
+     */
+    public void addDataQualifier(byte[] qualifier) {
+        ArgumentValidator.notNull(qualifier, "qualifier");
+        dataQualifiers.add(qualifier);
+    }
+
+    /**
+     * Convenience variant of {@link #addDataQualifier(byte[])} which does
+     * the conversion to bytes for you.
+     */
+    public void addDataQualifier(String qualifier) {
+        ArgumentValidator.notNull(qualifier, "qualifier");
+        addDataQualifier(Bytes.toBytes(qualifier));
+    }
+
+    public List<byte[]> getDataQualifiers() {
+        return dataQualifiers;
+    }
+
+    /**
+     * Sets the number of regions of the index which are scanned concurrently. The default
+     * of 1 scans the regions one after the other. A higher value is useful for queries
+     * which read large ranges spread over many regions.
+     *
+     * @see #setPreserveOrder
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism should be at least 1, got: " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * When scanning regions in parallel, indicates if the results should be returned in the
+     * same order as by a sequential scan. This is the default. In that case, the regions are
+     * returned one after the other, while the regions which follow are read ahead. Otherwise,
+     * the results are returned as soon as they arrive, in which case the {@link QueryResult}
+     * can not be used in a {@link Conjunction} or {@link Disjunction}.
+     */
+    public void setPreserveOrder(boolean preserveOrder) {
+        this.preserveOrder = preserveOrder;
+    }
+
+    public boolean isPreserveOrder() {
+        return preserveOrder;
+    }
+
+    /**
+     * Sets the number of rows which are fetched on a background thread while the previous
+     * rows are being consumed, so that processing the results and transferring them from the
+     * region servers overlap. At most one such batch is read ahead. The default of 0 disables
+     * prefetching.
+     *
+     * <p>This has no effect on queries which are scanned in {@link #setParallelism parallel},
+     * since these read ahead already.
+     */
+    public void setPrefetchSize(int prefetchSize) {
+        if (prefetchSize < 0)
+            throw new IllegalArgumentException("Prefetch size should not be negative, got: " + prefetchSize);
+        this.prefetchSize = prefetchSize;
+    }
+
+    public int getPrefetchSize() {
+        return prefetchSize;
+    }
+
+    /**
+     * Returns the results in the reverse order of the index, e.g. from the highest to the
+     * lowest value of a range condition. The conditions select the same results as without
+     * this option. This avoids the need for a second index with {@link Order#DESCENDING}
+     * fields, at the expense of a slower scan: the index is read backwards in chunks, each
+     * of which requires a separate scan.
+     *
+     * <p>As with {@link #setPreserveOrder unordered} results, the results of a reverse query
+     * can not be used in a {@link Conjunction} or {@link Disjunction}. The
+     * {@link #setParallelism parallelism} and {@link #setPrefetchSize prefetch size} do not
+     * apply to reverse queries.
+     */
+    public void setReverse(boolean reverse) {
+        this.reverse = reverse;
+    }
+
+    public boolean isReverse() {
+        return reverse;
+    }
+
     public List<EqualsCondition> getEqConditions() {
         return eqConditions;
     }
@@ -126,6 +283,24 @@ public class Query {
         }
     }
 
+    public static class PrefixCondition {
+        private String name;
+        private Object prefix;
+
+        public PrefixCondition(String name, Object prefix) {
+            this.name = name;
+            this.prefix = prefix;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Object getPrefix() {
+            return prefix;
+        }
+    }
+
     public static class RangeCondition {
         private String name;
         private Object fromValue;
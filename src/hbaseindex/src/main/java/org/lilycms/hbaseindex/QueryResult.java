@@ -19,6 +19,11 @@ import java.io.IOException;
 
 /**
  * Result of executing a query.
+ *
+ * <p>Results can be iterated in two ways: {@link #next} returns each identifier as a
+ * new byte array, while {@link #advance} only moves to the next result, after which the
+ * identifier can be read from {@link #getIdentifierBuffer} without it being copied.
+ * Alternatively, {@link #next(QueryResultBatch, int)} moves over many results at once.
  */
 public interface QueryResult {
 
@@ -29,6 +34,38 @@ public interface QueryResult {
      */
     public byte[] next() throws IOException;
 
+    /**
+     * Move to the next result, without returning its identifier.
+     *
+     * @return false if the end is reached.
+     */
+    public boolean advance() throws IOException;
+
+    /**
+     * Moves over the next results, at most maxRows of them, and puts them in the supplied
+     * batch, which is cleared first. Less than maxRows results are only returned when the
+     * end is reached.
+     *
+     * <p>After this call, the current result as used by {@link #getIdentifierBuffer} and
+     * {@link #getData} is undefined, until the next call of next or advance.
+     *
+     * @return the number of results put in the batch, 0 if the end is reached.
+     */
+    public int next(QueryResultBatch batch, int maxRows) throws IOException;
+
+    /**
+     * Returns the array containing the identifier of the current result (corresponding to the
+     * last {@link #next} or {@link #advance} call), at {@link #getIdentifierOffset} and of
+     * {@link #getIdentifierLength} bytes. The array might be shared with other results and
+     * reused for later ones, so it should not be modified, and its contents are only valid
+     * until the next call of next or advance.
+     */
+    public byte[] getIdentifierBuffer();
+
+    public int getIdentifierOffset();
+
+    public int getIdentifierLength();
+
     /**
      * Retrieves data that was stored as part of the {@link IndexEntry} from the current index
      * entry (corresponding to the last {@link #next} call).
@@ -38,4 +75,10 @@ public interface QueryResult {
     public byte[] getData(String qualifier);
 
     public String getDataAsString(String qualifier);
+
+    /**
+     * Releases the resources held by this result, such as scanners. This should be called
+     * when not reading the result up to its end.
+     */
+    public void close();
 }
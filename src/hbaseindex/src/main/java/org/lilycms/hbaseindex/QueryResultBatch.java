@@ -0,0 +1,184 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.util.Arrays;
+
+/**
+ * A batch of query results, filled by {@link QueryResult#next(QueryResultBatch, int)}.
+ *
+ * <p>The identifiers of all rows are stored one after the other in a single byte array,
+ * available through {@link #getIdentifierBuffer}, so that filling a batch does not allocate
+ * an array per row. A batch can be reused for any number of next calls, the buffers only
+ * grow when needed.
+ *
+ * <p>The data of the rows, see {@link Query#setIncludeData}, is read on request from the
+ * rows as returned by HBase, it is not copied into the batch.
+ */
+public class QueryResultBatch {
+    private static final int DEFAULT_IDENTIFIER_LENGTH = 16;
+
+    private byte[] identifiers;
+    /** The start of the identifier of each row, followed by the end of the last one. */
+    private int[] offsets;
+    private Result[] rows;
+    private int size;
+
+    public QueryResultBatch() {
+        this(100);
+    }
+
+    /**
+     * @param capacity the number of rows for which room is reserved up front.
+     */
+    public QueryResultBatch(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity should be at least 1, got: " + capacity);
+        identifiers = new byte[capacity * DEFAULT_IDENTIFIER_LENGTH];
+        offsets = new int[capacity + 1];
+        rows = new Result[capacity];
+    }
+
+    /**
+     * The number of rows in this batch.
+     */
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(rows, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Returns the array containing the identifiers of all rows. It should not be modified, and
+     * is only valid until the batch is filled again.
+     */
+    public byte[] getIdentifierBuffer() {
+        return identifiers;
+    }
+
+    public int getIdentifierOffset(int row) {
+        checkRow(row);
+        return offsets[row];
+    }
+
+    public int getIdentifierLength(int row) {
+        checkRow(row);
+        return offsets[row + 1] - offsets[row];
+    }
+
+    /**
+     * Returns a copy of the identifier of a row.
+     */
+    public byte[] getIdentifier(int row) {
+        checkRow(row);
+        return Arrays.copyOfRange(identifiers, offsets[row], offsets[row + 1]);
+    }
+
+    /**
+     * Retrieves data that was stored as part of the {@link IndexEntry} of a row.
+     */
+    public byte[] getData(int row, byte[] qualifier) {
+        checkRow(row);
+        return rows[row] != null ? rows[row].getValue(Index.DATA_FAMILY, qualifier) : null;
+    }
+
+    public byte[] getData(int row, String qualifier) {
+        return getData(row, Bytes.toBytes(qualifier));
+    }
+
+    public String getDataAsString(int row, String qualifier) {
+        return Bytes.toString(getData(row, Bytes.toBytes(qualifier)));
+    }
+
+    /**
+     * Adds a row to this batch, copying its identifier. This is intended for implementations
+     * of {@link QueryResult}.
+     */
+    public void add(byte[] buffer, int offset, int length) {
+        add(buffer, offset, length, null);
+    }
+
+    void add(byte[] buffer, int offset, int length, Result row) {
+        int targetOffset = allocate(length, row);
+        System.arraycopy(buffer, offset, identifiers, targetOffset, length);
+    }
+
+    void add(QueryResultBatch batch, int row) {
+        add(batch.identifiers, batch.offsets[row], batch.offsets[row + 1] - batch.offsets[row], batch.rows[row]);
+    }
+
+    /**
+     * Adds a row whose identifier will be written by the caller, in the identifier buffer at
+     * the returned offset. The buffer should be retrieved after calling this method, since
+     * it might be replaced by a larger one.
+     */
+    int allocate(int length, Result row) {
+        if (size == rows.length) {
+            int capacity = rows.length * 2;
+            rows = Arrays.copyOf(rows, capacity);
+            offsets = Arrays.copyOf(offsets, capacity + 1);
+        }
+
+        int offset = offsets[size];
+        if (offset + length > identifiers.length) {
+            identifiers = Arrays.copyOf(identifiers, Math.max(offset + length, identifiers.length * 2));
+        }
+
+        rows[size] = row;
+        offsets[size + 1] = offset + length;
+        size++;
+        return offset;
+    }
+
+    Result getRow(int row) {
+        return rows[row];
+    }
+
+    int compareIdentifiers(int row, QueryResultBatch batch, int batchRow) {
+        return Bytes.compareTo(identifiers, offsets[row], offsets[row + 1] - offsets[row],
+                batch.identifiers, batch.offsets[batchRow], batch.offsets[batchRow + 1] - batch.offsets[batchRow]);
+    }
+
+    /**
+     * Returns the first row, starting from the given one, whose identifier is not smaller than
+     * the identifier of a row of another batch, or the size of this batch if there is none.
+     * This assumes the identifiers in this batch are sorted.
+     */
+    int seek(int fromRow, QueryResultBatch batch, int batchRow) {
+        int low = fromRow;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareIdentifiers(middle, batch, batchRow) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size)
+            throw new IndexOutOfBoundsException("Row " + row + " is not in this batch of " + size + " rows.");
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the complete results of recently performed queries in memory, so that repeated
+ * queries can be answered without scanning the index.
+ *
+ * <p>The results are invalidated coarsely: for each index a generation counter is kept for
+ * the index as a whole, and for a fixed number of buckets of first-field values. Each write
+ * through an {@link Index} increments the counter of the index and of the buckets of the
+ * written rows. A cached result remembers the generation on which it depends, which is the
+ * bucket of its first-field value if the query has an equals condition on the first field,
+ * and otherwise the generation of the whole index.
+ *
+ * <p>Writes done by other processes are not noticed, these are covered by a bound on the
+ * age of the cached results.
+ *
+ * <p>The size of the cache is bounded by the total number of rows of the cached results.
+ * Results which are larger than a tenth of this are not cached.
+ */
+class QueryResultCache {
+    private static final int BUCKETS = 256;
+
+    private final int maxRows;
+    private final int maxResultRows;
+    private final long maxStaleness;
+
+    private final ConcurrentMap<String, Generations> generations = new ConcurrentHashMap<String, Generations>();
+
+    /** The cached results, in least recently used order. */
+    private final LinkedHashMap<IndexEntry.ByteArrayKey, Entry> entries =
+            new LinkedHashMap<IndexEntry.ByteArrayKey, Entry>(16, 0.75f, true);
+    /** The number of rows of all cached results, each result counting for at least one. */
+    private int rows;
+
+    /**
+     * @param maxRows the maximum number of rows of all cached results together
+     * @param maxStaleness the maximum age of a cached result, in milliseconds
+     */
+    public QueryResultCache(int maxRows, long maxStaleness) {
+        if (maxRows < 1)
+            throw new IllegalArgumentException("maxRows should be at least 1, got: " + maxRows);
+        if (maxStaleness < 0)
+            throw new IllegalArgumentException("maxStaleness should not be negative, got: " + maxStaleness);
+        this.maxRows = maxRows;
+        this.maxResultRows = Math.max(1, maxRows / 10);
+        this.maxStaleness = maxStaleness;
+    }
+
+    /**
+     * The number of rows up to which a result is cached.
+     */
+    public int getMaxResultRows() {
+        return maxResultRows;
+    }
+
+    /**
+     * Returns the current generation of the rows of an index starting with the given
+     * first-field prefix, or of all rows of the index if the prefix is null.
+     */
+    public long getGeneration(String indexName, byte[] prefix) {
+        Generations indexGenerations = getGenerations(indexName);
+        return prefix == null ? indexGenerations.all.get() : indexGenerations.buckets.get(bucket(prefix));
+    }
+
+    /**
+     * Invalidates the cached results which might include rows starting with the given
+     * first-field prefix.
+     */
+    public void invalidate(String indexName, byte[] prefix) {
+        Generations indexGenerations = getGenerations(indexName);
+        indexGenerations.buckets.incrementAndGet(bucket(prefix));
+        indexGenerations.all.incrementAndGet();
+    }
+
+    /**
+     * Invalidates all cached results of an index.
+     */
+    public void invalidate(String indexName) {
+        Generations indexGenerations = getGenerations(indexName);
+        for (int i = 0; i < BUCKETS; i++) {
+            indexGenerations.buckets.incrementAndGet(i);
+        }
+        indexGenerations.all.incrementAndGet();
+    }
+
+    /**
+     * Returns the cached result for the given key, or null if there is none which is still
+     * of the given generation and not too old.
+     *
+     * <p>The returned batch is shared and should not be modified.
+     */
+    public synchronized QueryResultBatch get(IndexEntry.ByteArrayKey key, long generation) {
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+
+        if (entry.generation != generation || System.currentTimeMillis() - entry.created > maxStaleness) {
+            remove(key);
+            return null;
+        }
+
+        return entry.result;
+    }
+
+    /**
+     * Caches the complete result of a query, unless it has more than
+     * {@link #getMaxResultRows} rows.
+     *
+     * @param generation the generation on which the result depends, as retrieved before
+     *                   performing the query
+     * @param created the time at which the query was started
+     */
+    public synchronized void put(IndexEntry.ByteArrayKey key, long generation, long created, QueryResultBatch result) {
+        if (result.size() > maxResultRows)
+            return;
+
+        remove(key);
+        entries.put(key, new Entry(result, generation, created));
+        rows += weight(result);
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (rows > maxRows && it.hasNext()) {
+            rows -= weight(it.next().result);
+            it.remove();
+        }
+    }
+
+    private void remove(IndexEntry.ByteArrayKey key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            rows -= weight(entry.result);
+        }
+    }
+
+    private static int weight(QueryResultBatch result) {
+        return Math.max(1, result.size());
+    }
+
+    private Generations getGenerations(String indexName) {
+        Generations indexGenerations = generations.get(indexName);
+        if (indexGenerations == null) {
+            Generations newGenerations = new Generations();
+            indexGenerations = generations.putIfAbsent(indexName, newGenerations);
+            if (indexGenerations == null)
+                indexGenerations = newGenerations;
+        }
+        return indexGenerations;
+    }
+
+    private static int bucket(byte[] prefix) {
+        return (Arrays.hashCode(prefix) & 0x7FFFFFFF) % BUCKETS;
+    }
+
+    private static class Generations {
+        private final AtomicLong all = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    }
+
+    private static class Entry {
+        private final QueryResultBatch result;
+        private final long generation;
+        private final long created;
+
+        private Entry(QueryResultBatch result, long generation, long created) {
+            this.result = result;
+            this.generation = generation;
+            this.created = created;
+        }
+    }
+}
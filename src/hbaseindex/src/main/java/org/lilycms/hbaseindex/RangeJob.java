@@ -0,0 +1,201 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Base class for background jobs which process the rows of an index in the data table,
+ * a key range at a time. The ranges are processed in parallel, typically one range per
+ * region.
+ *
+ * <p>When processing a range fails, or the job is stopped, the ranges which did not get
+ * started are skipped and the running ones are interrupted. The job is then ended without
+ * calling {@link #complete}.
+ */
+abstract class RangeJob {
+    private static final int THREADS = 4;
+
+    private final String jobName;
+    private final String indexName;
+    private final List<KeyRange> ranges;
+
+    private final AtomicInteger completedRanges = new AtomicInteger();
+    private final AtomicInteger finishedWorkers = new AtomicInteger();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile Throwable failure;
+    private ExecutorService executor;
+
+    protected final Log log = LogFactory.getLog(getClass());
+
+    /**
+     * @param jobName the name of the kind of job, as used in log messages and thread names
+     */
+    protected RangeJob(String jobName, String indexName, List<KeyRange> ranges) {
+        this.jobName = jobName;
+        this.indexName = indexName;
+        this.ranges = ranges;
+    }
+
+    /**
+     * Processes the rows in one of the key ranges of the job, this is called on a worker thread.
+     */
+    protected abstract void processRange(KeyRange range) throws IOException, InterruptedException;
+
+    /**
+     * Called once all ranges have been processed successfully.
+     */
+    protected abstract void complete() throws IOException;
+
+    /**
+     * Called each time a range has been processed.
+     *
+     * @param completed the number of ranges processed so far
+     */
+    protected void rangeCompleted(int completed) {
+    }
+
+    /**
+     * Starts the job in the background. This method returns immediately.
+     */
+    public synchronized void start() {
+        if (executor != null)
+            throw new IllegalStateException(capitalize(jobName) + " of index " + indexName + " has already been started.");
+
+        executor = Executors.newFixedThreadPool(Math.max(1, Math.min(THREADS, ranges.size())), new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "index-" + jobName + "-" + indexName + "-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        if (ranges.isEmpty()) {
+            finish();
+            return;
+        }
+
+        for (final KeyRange range : ranges) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        processRange(range);
+                        rangeCompleted(completedRanges.incrementAndGet());
+                    } catch (InterruptedException e) {
+                        abort(e);
+                    } catch (Throwable t) {
+                        log.error("Error in " + jobName + " of index " + indexName + ", the " + jobName +
+                                " can be resumed later on.", t);
+                        abort(t);
+                    } finally {
+                        workerFinished();
+                    }
+                }
+            });
+        }
+    }
+
+    private synchronized void abort(Throwable cause) {
+        if (failure == null)
+            failure = cause;
+
+        // The ranges which did not get started are finished as well
+        List<Runnable> notStarted = executor.shutdownNow();
+        for (int i = 0; i < notStarted.size(); i++) {
+            workerFinished();
+        }
+    }
+
+    private void workerFinished() {
+        if (finishedWorkers.incrementAndGet() == ranges.size()) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        try {
+            if (failure == null) {
+                complete();
+            }
+        } catch (Throwable t) {
+            log.error("Error completing " + jobName + " of index " + indexName, t);
+            failure = t;
+        } finally {
+            executor.shutdown();
+            finished.countDown();
+        }
+    }
+
+    public String getIndexName() {
+        return indexName;
+    }
+
+    /**
+     * The number of key ranges in which the index was split, this is roughly the number
+     * of regions the index spans.
+     */
+    public int getRangeCount() {
+        return ranges.size();
+    }
+
+    public int getCompletedRanges() {
+        return completedRanges.get();
+    }
+
+    public boolean isDone() {
+        return finished.getCount() == 0;
+    }
+
+    /**
+     * Stops the job. The rows which were not processed yet can be processed later on by
+     * resuming the job, see {@link IndexManager#resumePurges} and
+     * {@link IndexManager#resumeRewrites}.
+     */
+    public synchronized void stop() {
+        if (executor != null && !isDone()) {
+            abort(new InterruptedException(capitalize(jobName) + " of index " + indexName + " was stopped."));
+        }
+    }
+
+    /**
+     * Waits until the job has ended.
+     *
+     * @throws IOException if the job failed, or was stopped.
+     */
+    public void waitForCompletion() throws IOException, InterruptedException {
+        finished.await();
+        if (failure != null) {
+            IOException e = new IOException(capitalize(jobName) + " of index " + indexName + " did not complete.");
+            e.initCause(failure);
+            throw e;
+        }
+    }
+
+    private static String capitalize(String name) {
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A ResultScanner which returns the rows of a scan in reverse order, i.e. from the stop row
+ * back to the start row.
+ *
+ * <p>HBase scanners only move forward, therefore the rows are read in chunks: a window of
+ * keys just before the rows returned so far is scanned forward, and its rows are returned
+ * last to first. Each window should contain at most the chunk size rows, its start is
+ * searched by treating the keys as numbers:
+ *
+ * <ul>
+ * <li>when a window contains too many rows, the span of the keys of the rows which were read
+ * gives an estimate of the width of a window with the chunk size rows.
+ * <li>empty windows are skipped, and the next window is widened quickly, so that large gaps
+ * in the keys, e.g. at the end of the table, take only a few steps.
+ * <li>after a window with a few rows, the next one is widened in proportion.
+ * </ul>
+ *
+ * <p>This is done per region, so that the windows do not span region boundaries. Each window
+ * requires a scan of its own, so this is considerably slower than a forward scan.
+ */
+class ReverseResultScanner extends BaseResultScanner {
+    /** The maximum number of bytes of the keys used to compute window starts. */
+    private static final int MAX_PRECISION = 1024;
+    /** The maximum factor by which the window is widened after a window with few rows. */
+    private static final int MAX_WIDEN_FACTOR = 16;
+
+    private final HTable htable;
+    private final Scan scan;
+    private final int chunkSize;
+    /** The key ranges of the regions which remain to be read, the last one being read. */
+    private final List<KeyRange> ranges;
+    /** The exclusive end of the rows of the last range which remain to be read. */
+    private byte[] end;
+    /** The number of bytes of the keys used to compute window starts. */
+    private int precision;
+    /** The width of the next window, in units of 256^-precision, null for the whole range. */
+    private BigInteger width;
+    /** The width of the narrowest window known to contain too many rows, if any. */
+    private BigInteger fullWidth;
+    /** The estimated width of a window with chunkSize rows, after a window with too many rows. */
+    private BigInteger estimate;
+    private List<Result> chunk = new ArrayList<Result>();
+    private boolean closed;
+
+    public ReverseResultScanner(HTable htable, Scan scan, int chunkSize) throws IOException {
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("Chunk size should be at least 1, got: " + chunkSize);
+        this.htable = htable;
+        this.scan = scan;
+        this.chunkSize = chunkSize;
+        this.ranges = KeyRange.splitOnRegions(htable, scan.getStartRow(), scan.getStopRow());
+        startRange();
+    }
+
+    public Result next() throws IOException {
+        while (chunk.isEmpty()) {
+            if (closed || ranges.isEmpty())
+                return null;
+            readChunk();
+        }
+        return chunk.remove(chunk.size() - 1);
+    }
+
+    public void close() {
+        closed = true;
+        chunk.clear();
+    }
+
+    private void startRange() {
+        KeyRange range = ranges.get(ranges.size() - 1);
+        end = range.getStop();
+        width = null;
+        setPrecision(Math.max(range.getStart().length, end.length) + 1);
+    }
+
+    /**
+     * Increases the precision to the given number of bytes, if it is not larger already.
+     */
+    private void setPrecision(int newPrecision) {
+        if (newPrecision > precision) {
+            int shift = 8 * (newPrecision - precision);
+            if (width != null) {
+                width = width.shiftLeft(shift);
+            }
+            if (fullWidth != null) {
+                fullWidth = fullWidth.shiftLeft(shift);
+            }
+            if (estimate != null) {
+                estimate = estimate.shiftLeft(shift);
+            }
+            precision = newPrecision;
+        }
+    }
+
+    /**
+     * Reads the rows of the window before the end key, which contains at most chunkSize rows
+     * and, unless it reaches the start of the range, at least one row.
+     */
+    private void readChunk() throws IOException {
+        byte[] start = ranges.get(ranges.size() - 1).getStart();
+        fullWidth = null;
+
+        while (true) {
+            byte[] from = getWindowStart(start);
+            // As a last resort, when many keys share a very long prefix, read the window at once
+            boolean unlimited = precision > MAX_PRECISION;
+            List<Result> rows = scanWindow(from, unlimited ? -1 : chunkSize + 1);
+
+            if (rows.size() > chunkSize && !unlimited) {
+                // Too many rows: narrow the window
+                if (width == null) {
+                    width = getEndNumber().subtract(toNumber(start));
+                }
+                byte[] firstKey = rows.get(0).getRow();
+                byte[] lastKey = rows.get(chunkSize).getRow();
+                // The keys are likely to differ only beyond their common prefix with the first row
+                setPrecision(firstKey.length + 1);
+                fullWidth = width;
+
+                // The keys of the rows which were read tell how wide a window with chunkSize rows
+                // is, assuming the density remains the same
+                BigInteger rowsWidth = toNumber(lastKey).subtract(toNumber(firstKey));
+                estimate = rowsWidth.multiply(BigInteger.valueOf(3)).shiftRight(2);
+                width = estimate;
+
+                // The rows which were read might be part of a cluster of keys with a common
+                // prefix, followed by a gap: first try to skip that gap at once
+                byte[] gapStart = KeyRange.nextPrefix(commonPrefix(firstKey, lastKey));
+                if (gapStart.length > 0 && (end.length == 0 || Bytes.compareTo(gapStart, end) < 0)) {
+                    BigInteger gapWidth = getEndNumber().subtract(toNumber(gapStart));
+                    if (gapWidth.compareTo(width) > 0) {
+                        width = gapWidth;
+                    }
+                }
+
+                if (width.signum() <= 0 || width.compareTo(fullWidth) >= 0) {
+                    width = halveFullWidth();
+                }
+            } else if (rows.isEmpty() && !Bytes.equals(from, start)) {
+                // No rows: skip the window, and widen the next one
+                end = from;
+                if (fullWidth == null) {
+                    // There might be a large gap in the keys, double the number of bits of the
+                    // width so that it is crossed in a few steps
+                    width = width.shiftLeft(Math.max(4, width.bitLength()));
+                } else {
+                    // The rows are somewhere in the remainder of the window with too many rows
+                    fullWidth = fullWidth.subtract(width);
+                    width = estimate;
+                    estimate = estimate.shiftLeft(1);
+                    if (width.signum() <= 0 || width.compareTo(fullWidth) >= 0) {
+                        width = halveFullWidth();
+                    }
+                }
+            } else {
+                if (Bytes.equals(from, start)) {
+                    ranges.remove(ranges.size() - 1);
+                    if (!ranges.isEmpty()) {
+                        startRange();
+                    }
+                } else {
+                    end = from;
+                    if (rows.size() <= chunkSize / 2) {
+                        // Widen the next window so that, at the same density, it would be filled
+                        // for about three quarters
+                        int quarters = Math.min(4 * MAX_WIDEN_FACTOR, 3 * chunkSize / rows.size());
+                        width = width.multiply(BigInteger.valueOf(quarters)).shiftRight(2);
+                    }
+                }
+
+                chunk = rows;
+                if (!chunk.isEmpty() || ranges.isEmpty())
+                    return;
+                start = ranges.get(ranges.size() - 1).getStart();
+                fullWidth = null;
+            }
+        }
+    }
+
+    /**
+     * Returns half of the width of the narrowest window known to have too many rows,
+     * increasing the precision if needed to make it larger than zero.
+     */
+    private BigInteger halveFullWidth() {
+        while (fullWidth.compareTo(BigInteger.ONE) <= 0 && precision <= MAX_PRECISION) {
+            setPrecision(precision + 1);
+        }
+        return fullWidth.shiftRight(1).max(BigInteger.ONE);
+    }
+
+    private static byte[] commonPrefix(byte[] key1, byte[] key2) {
+        int length = 0;
+        while (length < key1.length && length < key2.length && key1[length] == key2[length]) {
+            length++;
+        }
+        return Arrays.copyOf(key1, length);
+    }
+
+    private byte[] getWindowStart(byte[] start) {
+        if (width == null)
+            return start;
+
+        BigInteger fromNumber = getEndNumber().subtract(width);
+        if (fromNumber.signum() <= 0)
+            return start;
+
+        // The from key is smaller than the end key, since it is smaller than its first bytes
+        byte[] from = toKey(fromNumber);
+        return Bytes.compareTo(from, start) > 0 ? from : start;
+    }
+
+    private List<Result> scanWindow(byte[] from, int limit) throws IOException {
+        Scan windowScan = new Scan(scan);
+        windowScan.setStartRow(from);
+        windowScan.setStopRow(end);
+        if (limit > 0) {
+            windowScan.setCaching(limit);
+        }
+
+        List<Result> rows = new ArrayList<Result>(limit > 0 ? limit : chunkSize);
+        ResultScanner scanner = htable.getScanner(windowScan);
+        try {
+            Result result;
+            while ((limit < 0 || rows.size() < limit) && (result = scanner.next()) != null) {
+                rows.add(result);
+            }
+        } finally {
+            scanner.close();
+        }
+        return rows;
+    }
+
+    /**
+     * The end key as a number, an empty end key standing for the end of the table.
+     */
+    private BigInteger getEndNumber() {
+        return end.length == 0 ? BigInteger.ONE.shiftLeft(8 * precision) : toNumber(end);
+    }
+
+    /**
+     * Converts the first precision bytes of a key, padded with zeros, to an unsigned number.
+     */
+    private BigInteger toNumber(byte[] key) {
+        byte[] bytes = new byte[precision + 1];
+        System.arraycopy(key, 0, bytes, 1, Math.min(key.length, precision));
+        return new BigInteger(bytes);
+    }
+
+    private byte[] toKey(BigInteger number) {
+        byte[] bytes = number.toByteArray();
+        byte[] key = new byte[precision];
+        int length = Math.min(bytes.length, precision);
+        System.arraycopy(bytes, bytes.length - length, key, precision - length, length);
+        return key;
+    }
+}
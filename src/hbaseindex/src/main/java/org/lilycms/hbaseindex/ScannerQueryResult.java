@@ -15,6 +15,7 @@
  */
 package org.lilycms.hbaseindex;
 
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -23,26 +24,89 @@ import java.io.IOException;
 
 /**
  * A QueryResult on top of a HBase scanner.
+ *
+ * <p>The identifiers are read directly from the buffers of the scanned rows. For inverted
+ * identifiers (descending identifier order), they are un-inverted into a buffer which is
+ * reused for all rows.
  */
 class ScannerQueryResult extends BaseQueryResult {
     private ResultScanner scanner;
     private boolean invertIdentifier;
+    private byte[] identifierBuffer;
+    private int identifierOffset;
+    private int identifierLength;
+    private byte[] invertedIdentifierBuffer = new byte[0];
 
     public ScannerQueryResult(ResultScanner scanner, boolean invertIdentifier) {
         this.scanner = scanner;
         this.invertIdentifier = invertIdentifier;
     }
 
-    public byte[] next() throws IOException {
+    public boolean advance() throws IOException {
         currentResult = scanner.next();
         if (currentResult == null) {
-            return null;
+            identifierBuffer = null;
+            return false;
+        }
+
+        KeyValue keyValue = currentResult.raw()[0];
+        byte[] buffer = keyValue.getBuffer();
+        int rowEnd = keyValue.getRowOffset() + keyValue.getRowLength();
+
+        identifierLength = IdentifierEncoding.getLength(buffer, rowEnd, invertIdentifier);
+        if (invertIdentifier) {
+            if (invertedIdentifierBuffer.length < identifierLength) {
+                invertedIdentifierBuffer = new byte[Math.max(identifierLength, invertedIdentifierBuffer.length * 2)];
+            }
+            IdentifierEncoding.copy(buffer, rowEnd, true, invertedIdentifierBuffer, 0);
+            identifierBuffer = invertedIdentifierBuffer;
+            identifierOffset = 0;
+        } else {
+            identifierBuffer = buffer;
+            identifierOffset = rowEnd - Bytes.SIZEOF_INT - identifierLength;
+        }
+
+        return true;
+    }
+
+    /**
+     * Copies the identifiers straight from the scanned rows into the batch.
+     */
+    public int next(QueryResultBatch batch, int maxRows) throws IOException {
+        checkMaxRows(maxRows);
+        batch.clear();
+        currentResult = null;
+        identifierBuffer = null;
+
+        while (batch.size() < maxRows) {
+            Result result = scanner.next();
+            if (result == null)
+                break;
+
+            KeyValue keyValue = result.raw()[0];
+            byte[] buffer = keyValue.getBuffer();
+            int rowEnd = keyValue.getRowOffset() + keyValue.getRowLength();
+
+            int offset = batch.allocate(IdentifierEncoding.getLength(buffer, rowEnd, invertIdentifier), result);
+            IdentifierEncoding.copy(buffer, rowEnd, invertIdentifier, batch.getIdentifierBuffer(), offset);
         }
 
-        byte[] rowKey = currentResult.getRow();
+        return batch.size();
+    }
+
+    public byte[] getIdentifierBuffer() {
+        return identifierBuffer;
+    }
+
+    public int getIdentifierOffset() {
+        return identifierOffset;
+    }
+
+    public int getIdentifierLength() {
+        return identifierLength;
+    }
 
-        byte[] identifier = IdentifierEncoding.decode(rowKey, invertIdentifier);
-        
-        return identifier;
+    public void close() {
+        scanner.close();
     }
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Joins the sorted results of several queries, like a {@link Conjunction}, by iterating
+ * over the results of one of them and seeking to each of its identifiers in the others.
+ * When another query has no match, it is positioned on a larger identifier, to which the
+ * driving query then seeks in turn.
+ *
+ * <p>See {@link ConjunctionBuilder}.
+ */
+class SeekingConjunction extends BufferedQueryResult {
+    private IndexSeeker driver;
+    private List<IndexSeeker> others;
+    private boolean end;
+
+    /**
+     * @param driver the query whose results are iterated, this should be the most selective one
+     * @param others the other queries, in the order in which they are checked
+     */
+    public SeekingConjunction(IndexSeeker driver, List<IndexSeeker> others) {
+        this.driver = driver;
+        this.others = others;
+    }
+
+    protected void merge(QueryResultBatch target, int maxRows) throws IOException {
+        while (!end && target.size() < maxRows) {
+            if (!driver.hasCurrent()) {
+                end = true;
+                return;
+            }
+
+            boolean match = true;
+            for (IndexSeeker other : others) {
+                int cmp = other.seek(driver.getBatch(), driver.getPos());
+                if (cmp == IndexSeeker.END || cmp > 0 &&
+                        driver.seek(other.getBatch(), other.getPos()) == IndexSeeker.END) {
+                    end = true;
+                    return;
+                } else if (cmp > 0) {
+                    match = false;
+                    break;
+                }
+            }
+
+            if (match) {
+                target.add(driver.getBatch(), driver.getPos());
+                driver.skip();
+            }
+        }
+    }
+
+    public void close() {
+        driver.close();
+        for (IndexSeeker other : others) {
+            other.close();
+        }
+    }
+}
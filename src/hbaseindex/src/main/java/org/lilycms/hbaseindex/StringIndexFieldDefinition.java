@@ -22,7 +22,9 @@ import org.lilycms.util.LocaleHelper;
 import java.io.UnsupportedEncodingException;
 import java.text.Collator;
 import java.text.Normalizer;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 
@@ -39,6 +41,7 @@ import java.util.Map;
  *  <li>
  *  <li>{@link #setLocale}
  *  <li>{@link #setCaseSensitive}
+ *  <li>{@link #setEncodedValueCacheSize}
  * </ul>
  */
 public class StringIndexFieldDefinition extends IndexFieldDefinition {
@@ -47,6 +50,8 @@ public class StringIndexFieldDefinition extends IndexFieldDefinition {
     private Locale locale = Locale.US;
     private ByteEncodeMode byteEncodeMode = ByteEncodeMode.UTF8;
     private boolean caseSensitive = true;
+    private int encodedValueCacheSize = 0;
+    private Map<String, byte[]> encodedValueCache;
 
     private static Map<ByteEncodeMode, StringEncoder> ENCODERS;
     static {
@@ -94,6 +99,7 @@ public class StringIndexFieldDefinition extends IndexFieldDefinition {
     public void setLocale(Locale locale) {
         ArgumentValidator.notNull(locale, "locale");
         this.locale = locale;
+        clearEncodedValueCache();
     }
 
     public ByteEncodeMode getByteEncodeMode() {
@@ -109,6 +115,7 @@ public class StringIndexFieldDefinition extends IndexFieldDefinition {
     public void setByteEncodeMode(ByteEncodeMode byteEncodeMode) {
         ArgumentValidator.notNull(byteEncodeMode, "byteEncodeMode");
         this.byteEncodeMode = byteEncodeMode;
+        clearEncodedValueCache();
     }
 
     public boolean isCaseSensitive() {
@@ -120,6 +127,32 @@ public class StringIndexFieldDefinition extends IndexFieldDefinition {
      */
     public void setCaseSensitive(boolean caseSensitive) {
         this.caseSensitive = caseSensitive;
+        clearEncodedValueCache();
+    }
+
+    public int getEncodedValueCacheSize() {
+        return encodedValueCacheSize;
+    }
+
+    /**
+     * Enables a cache of the most recently encoded strings and their bytes, holding at
+     * most the given number of strings. This is useful when the same values are encoded
+     * over and over again, especially in {@link ByteEncodeMode#COLLATOR} mode where
+     * computing the collation key is expensive. A size of 0, the default, disables the cache.
+     *
+     * <p>This is a runtime option of this process, it is not stored as part of the index
+     * definition.
+     */
+    public void setEncodedValueCacheSize(int encodedValueCacheSize) {
+        if (encodedValueCacheSize < 0)
+            throw new IllegalArgumentException("Cache size should not be negative, got: " + encodedValueCacheSize);
+        this.encodedValueCacheSize = encodedValueCacheSize;
+        this.encodedValueCache = encodedValueCacheSize > 0 ? new LruCache(encodedValueCacheSize) : null;
+    }
+
+    private void clearEncodedValueCache() {
+        if (encodedValueCache != null)
+            encodedValueCache = new LruCache(encodedValueCacheSize);
     }
 
     public int getLength() {
@@ -134,27 +167,117 @@ public class StringIndexFieldDefinition extends IndexFieldDefinition {
     @Override
     public byte[] toBytes(Object value) {
         String string = (String)value;
+
+        Map<String, byte[]> cache = encodedValueCache;
+        if (cache != null) {
+            byte[] bytes;
+            synchronized (cache) {
+                bytes = cache.get(string);
+            }
+            if (bytes == null) {
+                bytes = encode(string);
+                synchronized (cache) {
+                    cache.put(string, bytes);
+                }
+            }
+            // The callers are free to modify the returned array
+            return bytes.clone();
+        }
+
+        return encode(string);
+    }
+
+    /**
+     * Encodes a prefix of strings. In {@link ByteEncodeMode#COLLATOR} mode, this only takes
+     * the primary collation weights into account (the base letters, not accents or case), so
+     * e.g. "Ca" matches "cafe" and "Caf&eacute;". Characters which the collator ignores on the
+     * primary level, such as spaces, are skipped.
+     */
+    @Override
+    public byte[] toPrefixBytes(Object value) {
+        String string = (String)value;
+
         string = Normalizer.normalize(string, Normalizer.Form.NFC);
+        if (!caseSensitive) {
+            string = string.toLowerCase(locale);
+        }
+
+        return ENCODERS.get(byteEncodeMode).toPrefixBytes(string, locale);
+    }
+
+    private byte[] encode(String string) {
+        StringEncoder encoder = ENCODERS.get(byteEncodeMode);
+
+        // Single pass over the characters to check if the string is ASCII and if it
+        // contains a run of U+0000 characters as long as the end-of-field marker
+        boolean ascii = true;
+        int nullRun = 0;
+        int maxNullRun = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c >= 0x80) {
+                ascii = false;
+                nullRun = 0;
+            } else if (c == 0) {
+                nullRun++;
+                if (nullRun > maxNullRun)
+                    maxNullRun = nullRun;
+            } else {
+                nullRun = 0;
+            }
+        }
+
+        if (encoder.isNullPreserving() && maxNullRun >= EOF_MARKER.length) {
+            throw new RuntimeException("Encoded string value contains the end-of-field marker (zero byte).");
+        }
+
+        // ASCII strings are always in normalized form
+        if (!ascii) {
+            string = Normalizer.normalize(string, Normalizer.Form.NFC);
+        }
 
         if (!caseSensitive) {
             string = string.toLowerCase(locale);
         }
 
-        byte[] bytes = ENCODERS.get(byteEncodeMode).toBytes(string, locale);
+        byte[] bytes = encoder.toBytes(string, locale);
 
-        for (int i = 0; i <= bytes.length - 4; i++) {
-            if (bytes[i] == 0 && bytes[i + 1] == 0 && bytes[i + 2] == 0 && bytes[i + 3] == 0) {
-                // TODO what are the chances of this happening?
-                // For most cases it does actually not matter if the EOF sequence would appear
-                // in the encoded string, but for equals-string searches it matters.
-                throw new RuntimeException("Encoded string value contains the end-of-field marker (zero byte).");
+        if (!encoder.isNullPreserving()) {
+            for (int i = 0; i <= bytes.length - 4; i++) {
+                if (bytes[i] == 0 && bytes[i + 1] == 0 && bytes[i + 2] == 0 && bytes[i + 3] == 0) {
+                    // TODO what are the chances of this happening?
+                    // For most cases it does actually not matter if the EOF sequence would appear
+                    // in the encoded string, but for equals-string searches it matters.
+                    throw new RuntimeException("Encoded string value contains the end-of-field marker (zero byte).");
+                }
             }
         }
+
+        // The end of the field is found by searching the first occurrence of the end-of-field marker,
+        // a trailing zero byte would be taken as the start of the marker
+        if (bytes.length > 0 && bytes[bytes.length - 1] == 0) {
+            throw new RuntimeException("Encoded string value ends with a zero byte, which overlaps with the " +
+                    "end-of-field marker.");
+        }
         return bytes;
     }
 
     private interface StringEncoder {
         byte[] toBytes(String string, Locale locale);
+
+        /**
+         * Returns bytes which are a prefix of the encoded form of each string starting with
+         * the given string.
+         */
+        byte[] toPrefixBytes(String string, Locale locale);
+
+        /**
+         * Returns true if the encoded bytes only contain zero bytes for the U+0000 characters
+         * of the string, and nowhere else. For such encoders, the check for the end-of-field
+         * marker can be done on the string rather than on the encoded bytes. Normalization and
+         * case folding never introduce or remove U+0000 characters.
+         */
+        boolean isNullPreserving();
     }
 
     private static class Utf8StringEncoder implements StringEncoder {
@@ -165,22 +288,89 @@ public class StringIndexFieldDefinition extends IndexFieldDefinition {
                 throw new RuntimeException(e);
             }
         }
+
+        public byte[] toPrefixBytes(String string, Locale locale) {
+            return toBytes(string, locale);
+        }
+
+        public boolean isNullPreserving() {
+            return true;
+        }
     }
 
     private static class AsciiFoldingStringEncoder implements StringEncoder {
         public byte[] toBytes(String string, Locale locale) {
-            try {
-                return ASCIIFoldingUtil.foldToASCII(string).getBytes("UTF-8");
-            } catch (UnsupportedEncodingException e) {
-                throw new RuntimeException(e);
-            }
+            return ASCIIFoldingUtil.foldToUTF8(string);
+        }
+
+        public byte[] toPrefixBytes(String string, Locale locale) {
+            // Characters are folded one by one, independent of the characters which follow
+            return toBytes(string, locale);
+        }
+
+        public boolean isNullPreserving() {
+            // Characters are never folded to U+0000
+            return true;
         }
     }
 
     private static class CollatorStringEncoder implements StringEncoder {
+        /**
+         * Collator.getInstance clones a collator on each call, and collators are not thread
+         * safe, therefore each thread keeps its own collator per locale.
+         */
+        private final ThreadLocal<Map<Locale, Collator>> collators = new ThreadLocal<Map<Locale, Collator>>() {
+            @Override
+            protected Map<Locale, Collator> initialValue() {
+                return new HashMap<Locale, Collator>();
+            }
+        };
+
         public byte[] toBytes(String string, Locale locale) {
-            Collator collator = Collator.getInstance(locale);
-            return collator.getCollationKey(string).toByteArray();
+            return getCollator(locale).getCollationKey(string).toByteArray();
+        }
+
+        /**
+         * A collation key consists of the primary weights of all characters, followed by the
+         * secondary and tertiary weights, each level ending with a zero char. Only the primary
+         * weights of a prefix are a prefix of the key of longer strings.
+         */
+        public byte[] toPrefixBytes(String string, Locale locale) {
+            byte[] key = toBytes(string, locale);
+            for (int i = 0; i + 1 < key.length; i += 2) {
+                if (key[i] == 0 && key[i + 1] == 0)
+                    return Arrays.copyOf(key, i);
+            }
+            return key;
+        }
+
+        private Collator getCollator(Locale locale) {
+            Map<Locale, Collator> localeCollators = collators.get();
+            Collator collator = localeCollators.get(locale);
+            if (collator == null) {
+                collator = Collator.getInstance(locale);
+                localeCollators.put(locale, collator);
+            }
+            return collator;
+        }
+
+        public boolean isNullPreserving() {
+            // Collation keys contain zero bytes of their own
+            return false;
+        }
+    }
+
+    private static class LruCache extends LinkedHashMap<String, byte[]> {
+        private final int maxSize;
+
+        public LruCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > maxSize;
         }
     }
 
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2010 Outerthought bvba
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilycms.hbaseindex;
+
+/**
+ * Variable-length encoding of integers whose binary representations sort in the same
+ * order as the numbers themselves. Small numbers, positive as well as negative, take
+ * few bytes.
+ *
+ * <p>The encoding consists of a header byte followed by 0 to 8 bytes:
+ *
+ * <ul>
+ *  <li>for a positive number (or zero) needing n bytes, the header is 0x80 + n, followed
+ *      by the n bytes of the number in big-endian order.
+ *  <li>for a negative number v for which ~v (= -v - 1) needs n bytes, the header is 0x7F - n,
+ *      followed by the lowest n bytes of v in big-endian order.
+ * </ul>
+ *
+ * <p>Longer positive numbers get a bigger header, and longer negative numbers a smaller one,
+ * so numbers with different headers compare correctly on their header. Numbers with the same
+ * header compare correctly on the bytes that follow. The header also tells the length, the
+ * encoding needs no end-of-field marker.
+ */
+final class VarLongEncoding {
+    private VarLongEncoding() {
+    }
+
+    public static byte[] encode(long value) {
+        long magnitude = value < 0 ? ~value : value;
+
+        int length = 0;
+        while (length < 8 && (magnitude >>> (length * 8)) != 0) {
+            length++;
+        }
+
+        byte[] bytes = new byte[length + 1];
+        bytes[0] = (byte)(value < 0 ? 0x7F - length : 0x80 + length);
+        for (int i = 0; i < length; i++) {
+            bytes[length - i] = (byte)(value >>> (i * 8));
+        }
+        return bytes;
+    }
+
+    public static long decode(byte[] bytes, int offset) {
+        int header = bytes[offset] & 0xFF;
+        boolean negative = header < 0x80;
+        int length = negative ? 0x7F - header : header - 0x80;
+
+        long value = negative ? -1L : 0L;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (bytes[offset + 1 + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the number of bytes of the encoded number starting at the given offset.
+     *
+     * @param inverted true if the bits of the encoded number are inverted
+     */
+    public static int getEncodedLength(byte[] bytes, int offset, boolean inverted) {
+        int header = (inverted ? bytes[offset] ^ 0xFF : bytes[offset]) & 0xFF;
+        return 1 + (header < 0x80 ? 0x7F - header : header - 0x80);
+    }
+}
@@ -22,6 +22,7 @@ import org.lilycms.hbaseindex.DateTimeIndexFieldDefinition.Precision;
 import java.math.BigDecimal;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.TimeZone;
 
 import static org.junit.Assert.*;
 import static org.junit.Assert.assertEquals;
@@ -142,6 +143,234 @@ public class ByteComparisonTest {
         assertTrue(Bytes.compareTo(string1, string2) == 0);               
     }
 
+    @Test
+    public void testAsciiFoldingBytes() throws Exception {
+        StringIndexFieldDefinition fieldDef = new StringIndexFieldDefinition("foobar");
+        fieldDef.setByteEncodeMode(StringIndexFieldDefinition.ByteEncodeMode.ASCII_FOLDING);
+
+        // characters folding to multiple characters
+        assertEquals("AEsir ss", Bytes.toString(fieldDef.toBytes("\u00C6sir \u00DF")));
+
+        // characters without ASCII equivalent are kept as they are
+        String[] unfolded = {"\u20AC 5", "\u4E2D\u6587", "\uD834\uDD1E clef", "\u0416"};
+        for (String string : unfolded) {
+            assertTrue(Bytes.equals(string.getBytes("UTF-8"), fieldDef.toBytes(string)));
+        }
+    }
+
+    @Test
+    public void testVariableLengthDecimalCompare() throws Exception {
+        String[] testNumbers = {"-1E+1000",
+        "-10.000000000000000000000000000000000000000000000000000000000000000000000000000000002",
+        "-10.000000000000000000000000000000000000000000000000000000000000000000000000000000001",
+        "-10",
+        "-0.5",
+        "-0.01",
+        "0",
+        "0.01",
+        "0.5",
+        "0.51",
+        "5.5",
+        "10",
+        "10.000000000000000000000000000000000000000000000000000000000000000000000000000000001",
+        "10.000000000000000000000000000000000000000000000000000000000000000000000000000000002",
+        "55.5",
+        "1E+1000"};
+
+        DecimalIndexFieldDefinition fieldDef = new DecimalIndexFieldDefinition("foobar");
+        fieldDef.setVariableLength(true);
+        assertEquals(-1, fieldDef.getLength());
+
+        byte[] previous = null;
+        for (String number : testNumbers) {
+            BigDecimal decimal = new BigDecimal(number);
+            byte[] bytes = fieldDef.toBytes(decimal);
+
+            assertEquals(bytes.length, fieldDef.getEncodedLength(bytes, 0, false));
+            assertEquals(0, decimal.compareTo(fieldDef.fromBytes(bytes, 0)));
+            if (previous != null) {
+                assertTrue("Ordering of " + number, Bytes.compareTo(previous, bytes) < 0);
+            }
+            previous = bytes;
+        }
+
+        // The scale does not matter, only the numeric value
+        assertTrue(Bytes.equals(fieldDef.toBytes(new BigDecimal("1.5")), fieldDef.toBytes(new BigDecimal("1.500"))));
+        assertEquals(1, fieldDef.toBytes(new BigDecimal("0.000")).length);
+        // sign, exponent (2 bytes), one digit, terminator
+        assertEquals(5, fieldDef.toBytes(new BigDecimal("12")).length);
+    }
+
+    @Test
+    public void testVariableLengthBytesCompare() throws Exception {
+        byte[][] values = {
+                {},
+                {0},
+                {0, 0},
+                {0, 1},
+                {1},
+                {'a'},
+                {'a', 0},
+                {'a', 0, (byte)0xFF},
+                {'a', 1},
+                {'a', (byte)0xFF},
+                {(byte)0xFF}};
+
+        ByteIndexFieldDefinition fieldDef = new ByteIndexFieldDefinition("foobar");
+        fieldDef.setVariableLength(true);
+
+        byte[] previous = null;
+        for (byte[] value : values) {
+            // include the end-of-field marker, like in the row key
+            byte[] bytes = Bytes.add(fieldDef.toBytes(value), fieldDef.getEndOfFieldMarker());
+            assertEquals(bytes.length - fieldDef.getEndOfFieldMarker().length,
+                    fieldDef.getEncodedLength(Bytes.add(bytes, new byte[] {0, 1, 2}), 0, false));
+            if (previous != null) {
+                assertTrue(Bytes.compareTo(previous, bytes) < 0);
+            }
+            previous = bytes;
+        }
+    }
+
+    @Test
+    public void testStringEndOfFieldMarker() throws Exception {
+        for (StringIndexFieldDefinition.ByteEncodeMode mode : StringIndexFieldDefinition.ByteEncodeMode.values()) {
+            StringIndexFieldDefinition fieldDef = new StringIndexFieldDefinition("foobar");
+            fieldDef.setByteEncodeMode(mode);
+
+            // shorter runs of zero bytes are fine
+            fieldDef.toBytes("a\u0000\u0000\u0000b");
+
+            if (mode != StringIndexFieldDefinition.ByteEncodeMode.COLLATOR) {
+                try {
+                    fieldDef.toBytes("a\u0000\u0000\u0000\u0000b");
+                    fail("Expected an exception for a string containing the end-of-field marker, mode " + mode);
+                } catch (RuntimeException e) {
+                    // ok
+                }
+
+                // a trailing zero byte would be taken as the start of the end-of-field marker
+                try {
+                    fieldDef.toBytes("a\u0000");
+                    fail("Expected an exception for a string ending in a zero byte, mode " + mode);
+                } catch (RuntimeException e) {
+                    // ok
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testVariableLengthLongCompare() throws Exception {
+        long[] testNumbers = {
+                Long.MIN_VALUE,
+                Integer.MIN_VALUE - 1L,
+                Integer.MIN_VALUE,
+                -65537,
+                -257,
+                -256,
+                -255,
+                -2,
+                -1,
+                0,
+                1,
+                255,
+                256,
+                65536,
+                Integer.MAX_VALUE,
+                Integer.MAX_VALUE + 1L,
+                Long.MAX_VALUE};
+
+        LongIndexFieldDefinition fieldDef = new LongIndexFieldDefinition("foobar");
+        fieldDef.setVariableLength(true);
+
+        for (int i = 0; i < testNumbers.length; i++) {
+            byte[] bytes = fieldDef.toBytes(testNumbers[i]);
+            assertEquals(bytes.length, fieldDef.getEncodedLength(bytes, 0, false));
+            if (i > 0) {
+                assertTrue(testNumbers[i - 1] + " < " + testNumbers[i],
+                        Bytes.compareTo(fieldDef.toBytes(testNumbers[i - 1]), bytes) < 0);
+            }
+        }
+
+        assertEquals(1, fieldDef.toBytes(0L).length);
+        assertEquals(1, fieldDef.toBytes(-1L).length);
+        assertEquals(2, fieldDef.toBytes(255L).length);
+        assertEquals(9, fieldDef.toBytes(Long.MIN_VALUE).length);
+
+        IntegerIndexFieldDefinition intFieldDef = new IntegerIndexFieldDefinition("foobar");
+        intFieldDef.setVariableLength(true);
+        assertEquals(-1, intFieldDef.getLength());
+        assertEquals(2, intFieldDef.toBytes(100).length);
+        assertTrue(Bytes.compareTo(intFieldDef.toBytes(-100), intFieldDef.toBytes(100)) < 0);
+        assertTrue(Bytes.compareTo(intFieldDef.toBytes(Integer.MAX_VALUE), intFieldDef.toBytes(Integer.MIN_VALUE)) > 0);
+    }
+
+    @Test
+    public void testSignedDoubleCompare() throws Exception {
+        double[] testNumbers = {
+                Double.NEGATIVE_INFINITY,
+                -Double.MAX_VALUE,
+                -1000d,
+                -Double.MIN_NORMAL,
+                -Double.MIN_VALUE,
+                -0d,
+                0d,
+                Double.MIN_VALUE,
+                Double.MIN_NORMAL,
+                55.45,
+                55.4500001,
+                1000d,
+                Double.MAX_VALUE,
+                Double.POSITIVE_INFINITY};
+
+        DoubleIndexFieldDefinition fieldDef = new DoubleIndexFieldDefinition("foobar");
+        for (int i = 0; i < testNumbers.length; i++) {
+            byte[] bytes = fieldDef.toBytes(testNumbers[i]);
+            assertEquals(Bytes.SIZEOF_DOUBLE, bytes.length);
+            assertEquals(Double.doubleToLongBits(testNumbers[i]),
+                    Double.doubleToLongBits(fieldDef.fromBytes(bytes, 0)));
+
+            for (int j = 0; j < testNumbers.length; j++) {
+                int cmp = Bytes.compareTo(bytes, fieldDef.toBytes(testNumbers[j]));
+                assertEquals(i < j ? -1 : (i == j ? 0 : 1), Integer.signum(cmp));
+            }
+        }
+    }
+
+    @Test
+    public void testBooleanCompare() throws Exception {
+        BooleanIndexFieldDefinition fieldDef = new BooleanIndexFieldDefinition("foobar");
+        byte[] falseBytes = fieldDef.toBytes(Boolean.FALSE);
+        byte[] trueBytes = fieldDef.toBytes(Boolean.TRUE);
+
+        assertEquals(1, trueBytes.length);
+        assertTrue(Bytes.compareTo(falseBytes, trueBytes) < 0);
+        assertFalse(fieldDef.fromBytes(falseBytes, 0));
+        assertTrue(fieldDef.fromBytes(trueBytes, 0));
+    }
+
+    @Test
+    public void testStringPrefixBytes() throws Exception {
+        for (StringIndexFieldDefinition.ByteEncodeMode mode : StringIndexFieldDefinition.ByteEncodeMode.values()) {
+            StringIndexFieldDefinition fieldDef = new StringIndexFieldDefinition("foobar");
+            fieldDef.setByteEncodeMode(mode);
+            fieldDef.setCaseSensitive(false);
+
+            byte[] prefix = fieldDef.toPrefixBytes("Caf");
+            for (String value : new String[] {"caf", "cafe", "CAFE", "caf\u00e9", "cafeteria"}) {
+                assertTrue(mode + ": " + value, startsWith(fieldDef.toBytes(value), prefix));
+            }
+            for (String value : new String[] {"ca", "cbf", "acaf"}) {
+                assertFalse(mode + ": " + value, startsWith(fieldDef.toBytes(value), prefix));
+            }
+        }
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        return bytes.length >= prefix.length && Bytes.compareTo(bytes, 0, prefix.length, prefix, 0, prefix.length) == 0;
+    }
+
     private byte[] toSortableBytes(int value) {
         IntegerIndexFieldDefinition fieldDef = new IntegerIndexFieldDefinition("foobar");
         byte[] result = fieldDef.toBytes(value);
@@ -274,6 +503,46 @@ public class ByteComparisonTest {
         assertTrue(Bytes.compareTo(bytes1, bytes2) > 0);
     }
 
+    @Test
+    public void testDateTimeZone() throws Exception {
+        TimeZone brussels = TimeZone.getTimeZone("Europe/Brussels");
+        TimeZone newYork = TimeZone.getTimeZone("America/New_York");
+
+        // 2010-03-01 02:30 in Brussels is still February 28 in New York
+        GregorianCalendar calendar = new GregorianCalendar(brussels);
+        calendar.clear();
+        calendar.set(2010, Calendar.MARCH, 1, 2, 30, 0);
+
+        DateTimeIndexFieldDefinition fieldDef = new DateTimeIndexFieldDefinition("foobar");
+        fieldDef.setPrecision(Precision.DATE);
+
+        fieldDef.setTimeZone(brussels);
+        byte[] brusselsDate = fieldDef.toBytes(calendar.getTime());
+        // Calendars are accepted as well
+        assertTrue(Bytes.equals(brusselsDate, fieldDef.toBytes(calendar)));
+
+        fieldDef.setTimeZone(newYork);
+        byte[] newYorkDate = fieldDef.toBytes(calendar.getTime());
+        assertTrue(Bytes.compareTo(newYorkDate, brusselsDate) < 0);
+
+        GregorianCalendar midnight = new GregorianCalendar(newYork);
+        midnight.clear();
+        midnight.set(2010, Calendar.FEBRUARY, 28);
+        assertTrue(Bytes.equals(newYorkDate, fieldDef.toBytes(midnight.getTime())));
+
+        // Time of day before 1970
+        fieldDef.setPrecision(Precision.TIME_NOMILLIS);
+        fieldDef.setTimeZone(TimeZone.getTimeZone("UTC"));
+        GregorianCalendar time = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        time.clear();
+        time.set(1969, Calendar.DECEMBER, 31, 23, 59, 58);
+        time.set(Calendar.MILLISECOND, 500);
+        byte[] expected = new byte[Bytes.SIZEOF_INT];
+        Bytes.putInt(expected, 0, 86398000);
+        expected[0] ^= 0x80;
+        assertTrue(Bytes.equals(expected, fieldDef.toBytes(time)));
+    }
+
     private byte[] date(Precision precision, int year, int month, int day, int hour, int minutes, int seconds, int millis) {
         GregorianCalendar calendar = new GregorianCalendar(year, month - 1, day, hour, minutes, seconds);
         calendar.set(Calendar.MILLISECOND, millis);
@@ -285,6 +554,30 @@ public class ByteComparisonTest {
         return bytes;
     }
 
+    @Test
+    public void testStringCollatorCompare() throws Exception {
+        StringIndexFieldDefinition fieldDef = new StringIndexFieldDefinition("foobar");
+        fieldDef.setByteEncodeMode(StringIndexFieldDefinition.ByteEncodeMode.COLLATOR);
+        fieldDef.setCaseSensitive(false);
+
+        StringIndexFieldDefinition cachingFieldDef = new StringIndexFieldDefinition("foobar");
+        cachingFieldDef.setByteEncodeMode(StringIndexFieldDefinition.ByteEncodeMode.COLLATOR);
+        cachingFieldDef.setCaseSensitive(false);
+        cachingFieldDef.setEncodedValueCacheSize(2);
+
+        String[] strings = {"apple", "Banana", "\u00e9clair", "e\u0301clair", "zebra", "apple"};
+        for (String string : strings) {
+            assertTrue(Bytes.equals(fieldDef.toBytes(string), cachingFieldDef.toBytes(string)));
+            // second time from the cache
+            assertTrue(Bytes.equals(fieldDef.toBytes(string), cachingFieldDef.toBytes(string)));
+        }
+
+        // Composed and decomposed forms are normalized to the same bytes
+        assertTrue(Bytes.equals(fieldDef.toBytes("\u00e9clair"), fieldDef.toBytes("e\u0301clair")));
+        assertTrue(Bytes.compareTo(fieldDef.toBytes("apple"), fieldDef.toBytes("Banana")) < 0);
+        assertTrue(Bytes.compareTo(fieldDef.toBytes("\u00e9clair"), fieldDef.toBytes("zebra")) < 0);
+    }
+
     /**
      * Code to print out a complete bit representation of a byte,
      * including leading zeros.
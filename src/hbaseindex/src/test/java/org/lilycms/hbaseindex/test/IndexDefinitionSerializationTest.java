@@ -19,6 +19,8 @@ import org.codehaus.jackson.node.ObjectNode;
 import org.junit.Test;
 import org.lilycms.hbaseindex.*;
 
+import java.util.TimeZone;
+
 import static org.junit.Assert.*;
 
 public class IndexDefinitionSerializationTest {
@@ -41,12 +43,14 @@ public class IndexDefinitionSerializationTest {
     public void testIntegerField() throws Exception {
         IndexDefinition indexDef = new IndexDefinition("index", "index");
         IntegerIndexFieldDefinition field = indexDef.addIntegerField("intfield");
+        field.setVariableLength(true);
         ObjectNode json = indexDef.toJson();
 
         IndexDefinition newIndexDef = new IndexDefinition("index", "index", json);
         IntegerIndexFieldDefinition newField = (IntegerIndexFieldDefinition)newIndexDef.getField("intfield");
 
         assertEquals(field.getName(), newField.getName());
+        assertEquals(field.isVariableLength(), newField.isVariableLength());
     }
 
     @Test
@@ -61,11 +65,41 @@ public class IndexDefinitionSerializationTest {
         assertEquals(field.getName(), newField.getName());
     }
 
+    @Test
+    public void testDoubleField() throws Exception {
+        IndexDefinition indexDef = new IndexDefinition("index", "index");
+        DoubleIndexFieldDefinition field = indexDef.addDoubleField("doublefield");
+        field.setOrder(Order.DESCENDING);
+        ObjectNode json = indexDef.toJson();
+
+        IndexDefinition newIndexDef = new IndexDefinition("index", "index", json);
+        DoubleIndexFieldDefinition newField = (DoubleIndexFieldDefinition)newIndexDef.getField("doublefield");
+
+        assertEquals(field.getName(), newField.getName());
+        assertEquals(IndexValueType.DOUBLE, newField.getType());
+        assertEquals(Order.DESCENDING, newField.getOrder());
+    }
+
+    @Test
+    public void testBooleanField() throws Exception {
+        IndexDefinition indexDef = new IndexDefinition("index", "index");
+        BooleanIndexFieldDefinition field = indexDef.addBooleanField("booleanfield");
+        ObjectNode json = indexDef.toJson();
+
+        IndexDefinition newIndexDef = new IndexDefinition("index", "index", json);
+        BooleanIndexFieldDefinition newField = (BooleanIndexFieldDefinition)newIndexDef.getField("booleanfield");
+
+        assertEquals(field.getName(), newField.getName());
+        assertEquals(IndexValueType.BOOLEAN, newField.getType());
+    }
+
     @Test
     public void testDateTimeField() throws Exception {
         IndexDefinition indexDef = new IndexDefinition("index", "index");
         DateTimeIndexFieldDefinition field = indexDef.addDateTimeField("datetimefield");
         field.setPrecision(DateTimeIndexFieldDefinition.Precision.DATETIME);
+        field.setTimeZone(TimeZone.getTimeZone("Europe/Brussels"));
+        field.setOrder(Order.DESCENDING);
         ObjectNode json = indexDef.toJson();
 
         IndexDefinition newIndexDef = new IndexDefinition("index", "index", json);
@@ -73,5 +107,33 @@ public class IndexDefinitionSerializationTest {
 
         assertEquals(field.getName(), newField.getName());
         assertEquals(field.getPrecision(), newField.getPrecision());
+        assertEquals(field.getTimeZone(), newField.getTimeZone());
+        // The stored order of datetime fields is ignored, existing rows were written in ascending order
+        assertEquals(Order.ASCENDING, newField.getOrder());
+    }
+
+    @Test
+    public void testVersions() throws Exception {
+        IndexDefinition indexDef = new IndexDefinition("index", "index");
+        indexDef.addStringField("field1");
+        indexDef.addIntegerField("field2");
+        assertEquals(1, indexDef.getVersion());
+        assertEquals(1, indexDef.getRewrittenVersion());
+
+        ObjectNode json = indexDef.toJson();
+        json.put("version", 2);
+        ((ObjectNode)json.get("fields").get("field2")).put("sinceVersion", 2);
+
+        IndexDefinition newIndexDef = new IndexDefinition("index", "index", json);
+        assertEquals(2, newIndexDef.getVersion());
+        assertEquals(1, newIndexDef.getRewrittenVersion());
+        assertEquals(1, newIndexDef.getFieldVersion("field1"));
+        assertEquals(2, newIndexDef.getFieldVersion("field2"));
+        assertEquals(1, newIndexDef.getFields(1).size());
+        assertEquals(2, newIndexDef.getFields(2).size());
+
+        newIndexDef = new IndexDefinition("index", "index", newIndexDef.toJson());
+        assertEquals(2, newIndexDef.getVersion());
+        assertEquals(2, newIndexDef.getFieldVersion("field2"));
     }
 }
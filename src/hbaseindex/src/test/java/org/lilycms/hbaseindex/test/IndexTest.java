@@ -15,7 +15,16 @@
  */
 package org.lilycms.hbaseindex.test;
 
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -26,9 +35,13 @@ import org.lilycms.testfw.TestHelper;
 
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
 
 public class IndexTest {
     private final static HBaseTestingUtility TEST_UTIL = new HBaseTestingUtility();
@@ -97,6 +110,47 @@ public class IndexTest {
         assertResultIds(result, "key0", "key1");
     }
 
+    @Test
+    public void testVariableLengthByteFieldIndex() throws Exception {
+        final String INDEX_NAME = "variableLengthByteField";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addByteField("field1").setVariableLength(true);
+        indexDef.addStringField("field2");
+        indexManager.createIndex(indexDef);
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+
+        byte[][] values = {Bytes.toBytes("aa"), new byte[] {'a', 'a', 0}, new byte[] {'a', 'a', 0, 0, 1},
+                Bytes.toBytes("aab"), Bytes.toBytes("aabbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb"), Bytes.toBytes("ab")};
+
+        for (int i = 0; i < values.length; i++) {
+            IndexEntry entry = new IndexEntry();
+            entry.addField("field1", values[i]);
+            entry.addField("field2", "x");
+            index.addEntry(entry, Bytes.toBytes("key" + i));
+        }
+
+        // Prefix query
+        Query query = new Query();
+        query.setRangeCondition("field1", Bytes.toBytes("aa"), Bytes.toBytes("aa"));
+        assertResultIds(index.performQuery(query), "key0", "key1", "key2", "key3", "key4");
+
+        // Values are not truncated, nor padded
+        query = new Query();
+        query.addEqualsCondition("field1", Bytes.toBytes("aa"));
+        query.addEqualsCondition("field2", "x");
+        assertResultIds(index.performQuery(query), "key0");
+
+        query = new Query();
+        query.addEqualsCondition("field1", new byte[] {'a', 'a', 0});
+        assertResultIds(index.performQuery(query), "key1");
+
+        query = new Query();
+        query.addEqualsCondition("field1", values[4]);
+        assertResultIds(index.performQuery(query), "key4");
+    }
+
     @Test
     public void testSingleIntFieldIndex() throws Exception {
         final String INDEX_NAME = "singleIntField";
@@ -162,6 +216,45 @@ public class IndexTest {
         assertNull(result.next());
     }
 
+    @Test
+    public void testVariableLengthLongFieldIndex() throws Exception {
+        final String INDEX_NAME = "variableLengthLongField";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addLongField("field1").setVariableLength(true);
+        indexDef.addStringField("field2");
+        indexManager.createIndex(indexDef);
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+
+        long values[] = {Long.MIN_VALUE, -300, -1, 0, 1, 300, Long.MAX_VALUE};
+        for (long value : values) {
+            IndexEntry entry = new IndexEntry();
+            entry.addField("field1", value);
+            entry.addField("field2", "a");
+            index.addEntry(entry, Bytes.toBytes("key" + value));
+        }
+
+        Query query = new Query();
+        query.setRangeCondition("field1", Long.MIN_VALUE, Long.MAX_VALUE);
+        QueryResult result = index.performQuery(query);
+
+        for (long value : values) {
+            assertEquals("key" + value, Bytes.toString(result.next()));
+        }
+
+        assertNull(result.next());
+
+        query = new Query();
+        query.setRangeCondition("field1", -1L, 300L);
+        assertResultIds(index.performQuery(query), "key-1", "key0", "key1", "key300");
+
+        query = new Query();
+        query.addEqualsCondition("field1", 300L);
+        query.addEqualsCondition("field2", "a");
+        assertResultIds(index.performQuery(query), "key300");
+    }
+
     @Test
     public void testSingleFloatFieldIndex() throws Exception {
         final String INDEX_NAME = "singleFloatField";
@@ -186,6 +279,66 @@ public class IndexTest {
         assertResultIds(result, "key0", "key2", "key3");
     }
 
+    @Test
+    public void testSingleDoubleFieldIndex() throws Exception {
+        final String INDEX_NAME = "singleDoubleField";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addDoubleField("field1");
+        indexManager.createIndex(indexDef);
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+
+        // 55.4500001 and 55.45 are the same float, but different doubles
+        double[] values = {55.45, 63.88, 55.4500001, 55.47, -0.3, -1e300};
+
+        for (int i = 0; i < values.length; i++) {
+            IndexEntry entry = new IndexEntry();
+            entry.addField("field1", values[i]);
+            index.addEntry(entry, Bytes.toBytes("key" + i));
+        }
+
+        Query query = new Query();
+        query.setRangeCondition("field1", new Double(55.45000005), new Double(55.48));
+        QueryResult result = index.performQuery(query);
+        assertResultIds(result, "key2", "key3");
+
+        query = new Query();
+        query.setRangeCondition("field1", new Double(-1e301), new Double(0));
+        result = index.performQuery(query);
+        assertResultIds(result, "key5", "key4");
+    }
+
+    @Test
+    public void testBooleanFieldIndex() throws Exception {
+        final String INDEX_NAME = "booleanField";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addBooleanField("field1");
+        indexDef.addIntegerField("field2");
+        indexManager.createIndex(indexDef);
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+
+        for (int i = 0; i < 6; i++) {
+            IndexEntry entry = new IndexEntry();
+            entry.addField("field1", i % 2 == 0);
+            entry.addField("field2", i);
+            index.addEntry(entry, Bytes.toBytes("key" + i));
+        }
+
+        Query query = new Query();
+        query.addEqualsCondition("field1", Boolean.TRUE);
+        query.setRangeCondition("field2", 1, 4);
+        QueryResult result = index.performQuery(query);
+        assertResultIds(result, "key2", "key4");
+
+        query = new Query();
+        query.addEqualsCondition("field1", Boolean.FALSE);
+        result = index.performQuery(query);
+        assertResultIds(result, "key1", "key3", "key5");
+    }
+
     @Test
     public void testSingleDateTimeFieldIndex() throws Exception {
         final String INDEX_NAME = "singleDateTimeField";
@@ -251,6 +404,41 @@ public class IndexTest {
         }
     }
 
+    @Test
+    public void testVariableLengthDecimalFieldIndex() throws Exception {
+        final String INDEX_NAME = "variableLengthDecimalField";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addDecimalField("field1").setVariableLength(true);
+        indexManager.createIndex(indexDef);
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+
+        String[] values = {"33.66", "-1", "-3.00007E77", "10.000000000000000000000000000001",
+                "10.000000000000000000000000000002"};
+
+        for (int i = 0; i < values.length; i++) {
+            IndexEntry entry = new IndexEntry();
+            entry.addField("field1", new BigDecimal(values[i]));
+            index.addEntry(entry, Bytes.toBytes("key" + i));
+        }
+
+        {
+            Query query = new Query();
+            query.setRangeCondition("field1", new BigDecimal(values[2]), new BigDecimal(values[0]));
+            QueryResult result = index.performQuery(query);
+            assertResultIds(result, "key2", "key1", "key3", "key4", "key0");
+        }
+
+        {
+            // Long mantissas are not truncated
+            Query query = new Query();
+            query.addEqualsCondition("field1", new BigDecimal(values[3]));
+            QueryResult result = index.performQuery(query);
+            assertResultIds(result, "key3");
+        }
+    }
+
     @Test
     public void testDuplicateValuesIndex() throws Exception {
         final String INDEX_NAME = "duplicateValues";
@@ -429,6 +617,282 @@ public class IndexTest {
         }
     }
 
+    @Test
+    public void testPurgeDeletedIndex() throws Exception {
+        final String INDEX_NAME = "purgeIndex";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addStringField("field1");
+        indexManager.createIndex(indexDef);
+
+        // An index whose name starts with the name of the first one, its rows should survive the purge
+        IndexDefinition otherIndexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME + "2");
+        otherIndexDef.addStringField("field1");
+        indexManager.createIndex(otherIndexDef);
+
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+        Index otherIndex = indexManager.getIndex(INDEX_NAME, INDEX_NAME + "2");
+        for (int i = 0; i < 50; i++) {
+            IndexEntry entry = new IndexEntry();
+            entry.addField("field1", "value" + i);
+            index.addEntry(entry, Bytes.toBytes("key" + i));
+            otherIndex.addEntry(entry, Bytes.toBytes("key" + i));
+        }
+
+        IndexPurgeJob purgeJob = indexManager.deleteIndex(INDEX_NAME, INDEX_NAME);
+        purgeJob.waitForCompletion();
+        assertTrue(purgeJob.isDone());
+        assertEquals(50, purgeJob.getDeletedRows());
+        assertEquals(purgeJob.getRangeCount(), purgeJob.getCompletedRanges());
+
+        // Nothing left to resume
+        assertEquals(0, indexManager.resumePurges().size());
+
+        // Recreating the index gives an empty index
+        indexManager.createIndex(indexDef);
+        index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+        Query query = new Query();
+        query.addEqualsCondition("field1", "value1");
+        assertResultSize(0, index.performQuery(query));
+
+        assertResultIds(otherIndex.performQuery(query), "key1");
+    }
+
+    @Test
+    public void testBulkBuild() throws Exception {
+        final String INDEX_NAME = "bulkBuild";
+        final String SOURCE_TABLE = "bulkBuildSource";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        HTableDescriptor tableDescriptor = new HTableDescriptor(SOURCE_TABLE);
+        tableDescriptor.addFamily(new HColumnDescriptor("family"));
+        new HBaseAdmin(TEST_UTIL.getConfiguration()).createTable(tableDescriptor);
+
+        HTable sourceTable = new HTable(TEST_UTIL.getConfiguration(), SOURCE_TABLE);
+        for (int i = 0; i < 100; i++) {
+            Put put = new Put(Bytes.toBytes("row" + i));
+            put.add(Bytes.toBytes("family"), Bytes.toBytes("number"), Bytes.toBytes(i));
+            sourceTable.put(put);
+        }
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addIntegerField("field1");
+        indexManager.createIndex(indexDef);
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+
+        IndexBulkBuilder builder = new IndexBulkBuilder(TEST_UTIL.getConfiguration(), index, new IndexEntryMapper() {
+            public void map(Result row, Collector collector) throws IOException {
+                int number = Bytes.toInt(row.getValue(Bytes.toBytes("family"), Bytes.toBytes("number")));
+                if (number % 2 == 0) {
+                    IndexEntry entry = new IndexEntry();
+                    entry.addField("field1", number);
+                    collector.collect(entry, row.getRow());
+                }
+            }
+        });
+        // Small buffer so that multiple files are written
+        builder.setBufferSize(1000);
+        builder.build(SOURCE_TABLE, new Path("/bulkbuild"));
+
+        assertEquals(100, builder.getRowsRead());
+        assertEquals(50, builder.getEntriesWritten());
+        assertTrue(builder.getFilesWritten() > 1);
+
+        Query query = new Query();
+        query.setRangeCondition("field1", 10, 14);
+        assertResultIds(index.performQuery(query), "row10", "row12", "row14");
+
+        query = new Query();
+        query.setRangeCondition("field1", Query.MIN_VALUE, Query.MAX_VALUE);
+        assertResultSize(50, index.performQuery(query));
+    }
+
+    @Test
+    public void testBackfill() throws Exception {
+        final String INDEX_NAME = "backfill";
+        final String SOURCE_TABLE = "backfillSource";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        HTableDescriptor tableDescriptor = new HTableDescriptor(SOURCE_TABLE);
+        tableDescriptor.addFamily(new HColumnDescriptor("family"));
+        new HBaseAdmin(TEST_UTIL.getConfiguration()).createTable(tableDescriptor);
+
+        HTable sourceTable = new HTable(TEST_UTIL.getConfiguration(), SOURCE_TABLE);
+        for (int i = 0; i < 20; i++) {
+            Put put = new Put(Bytes.toBytes("row" + i));
+            put.add(Bytes.toBytes("family"), Bytes.toBytes("number"), Bytes.toBytes(i));
+            sourceTable.put(put);
+        }
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addIntegerField("field1");
+        indexManager.createIndex(indexDef, IndexState.BUILDING);
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+        assertEquals(IndexState.BUILDING, index.getState());
+
+        try {
+            index.performQuery(new Query());
+            fail("Expected an IndexNotActiveException.");
+        } catch (IndexNotActiveException e) {
+            assertEquals(IndexState.BUILDING, e.getState());
+        }
+
+        // Entries can be maintained while building: a removal which happens before the
+        // backfill writes the entry should win
+        IndexEntry entry = new IndexEntry();
+        entry.addField("field1", 5);
+        index.removeEntry(entry, Bytes.toBytes("row5"));
+
+        IndexBackfiller backfiller = new IndexBackfiller(indexManager, INDEX_NAME, INDEX_NAME, new IndexEntryMapper() {
+            public void map(Result row, Collector collector) throws IOException {
+                IndexEntry entry = new IndexEntry();
+                entry.addField("field1", Bytes.toInt(row.getValue(Bytes.toBytes("family"), Bytes.toBytes("number"))));
+                collector.collect(entry, row.getRow());
+            }
+        });
+        backfiller.setBatchSize(7);
+        backfiller.backfill(SOURCE_TABLE);
+
+        assertEquals(20, backfiller.getRowsRead());
+        assertEquals(IndexState.ACTIVE, indexManager.getIndexState(INDEX_NAME, INDEX_NAME));
+
+        index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+        Query query = new Query();
+        query.setRangeCondition("field1", 4, 6);
+        assertResultIds(index.performQuery(query), "row4", "row6");
+
+        try {
+            new IndexBackfiller(indexManager, INDEX_NAME, INDEX_NAME, null);
+            fail("Expected an IllegalArgumentException.");
+        } catch (IllegalArgumentException e) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testAddFields() throws Exception {
+        final String INDEX_NAME = "addFields";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addStringField("field1");
+        indexManager.createIndex(indexDef);
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+
+        String[] values = new String[] {"a", "b", "b"};
+        for (int i = 0; i < values.length; i++) {
+            IndexEntry entry = new IndexEntry();
+            entry.addField("field1", values[i]);
+            index.addEntry(entry, Bytes.toBytes("key" + i));
+        }
+
+        // The existing fields should be unchanged
+        IndexDefinition invalidDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        invalidDef.addStringField("field1").setCaseSensitive(false);
+        invalidDef.addIntegerField("field2");
+        try {
+            indexManager.updateIndex(invalidDef);
+            fail("Expected an IllegalArgumentException.");
+        } catch (IllegalArgumentException e) {
+            // ok
+        }
+
+        IndexDefinition newIndexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        newIndexDef.addStringField("field1");
+        newIndexDef.addIntegerField("field2");
+        IndexRewriteJob job = indexManager.updateIndex(newIndexDef);
+        job.waitForCompletion();
+        assertEquals(3, job.getRewrittenRows());
+
+        index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+        assertEquals(2, index.getDefinition().getVersion());
+        assertEquals(2, index.getDefinition().getRewrittenVersion());
+        assertEquals(2, index.getDefinition().getFieldVersion("field2"));
+
+        IndexEntry entry = new IndexEntry();
+        entry.addField("field1", "b");
+        entry.addField("field2", 5);
+        index.addEntry(entry, Bytes.toBytes("key3"));
+
+        Query query = new Query();
+        query.addEqualsCondition("field1", "b");
+        assertResultIds(index.performQuery(query), "key1", "key2", "key3");
+
+        query = new Query();
+        query.addEqualsCondition("field1", "b");
+        query.addEqualsCondition("field2", null);
+        assertResultIds(index.performQuery(query), "key1", "key2");
+
+        query = new Query();
+        query.addEqualsCondition("field1", "b");
+        query.setRangeCondition("field2", 0, 10);
+        assertResultIds(index.performQuery(query), "key3");
+
+        assertEquals(0, indexManager.resumeRewrites().size());
+    }
+
+    @Test
+    public void testAddFieldsTwice() throws Exception {
+        final String INDEX_NAME = "addFieldsTwice";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addStringField("field1");
+        indexManager.createIndex(indexDef);
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+
+        for (int i = 0; i < 1000; i++) {
+            IndexEntry entry = new IndexEntry();
+            entry.addField("field1", "value" + i);
+            index.addEntry(entry, Bytes.toBytes("key" + i));
+        }
+
+        IndexDefinition secondDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        secondDef.addStringField("field1");
+        secondDef.addIntegerField("field2");
+        IndexRewriteJob job = indexManager.updateIndex(secondDef);
+        // Leave the rewrite unfinished
+        job.stop();
+        assertEquals(1, indexManager.getIndex(INDEX_NAME, INDEX_NAME).getDefinition().getRewrittenVersion());
+
+        IndexDefinition thirdDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        thirdDef.addStringField("field1");
+        thirdDef.addIntegerField("field2");
+        thirdDef.addIntegerField("field3");
+        try {
+            indexManager.updateIndex(thirdDef);
+            fail("Expected an IllegalStateException.");
+        } catch (IllegalStateException e) {
+            // ok
+        }
+
+        List<IndexRewriteJob> jobs = indexManager.resumeRewrites();
+        assertEquals(1, jobs.size());
+        jobs.get(0).waitForCompletion();
+
+        job = indexManager.updateIndex(thirdDef);
+        job.waitForCompletion();
+        assertEquals(1000, job.getRewrittenRows());
+
+        index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+        assertEquals(3, index.getDefinition().getVersion());
+        assertEquals(3, index.getDefinition().getRewrittenVersion());
+
+        // All rows have been rewritten to the last version
+        Query query = new Query();
+        query.addEqualsCondition("field1", "value5");
+        query.addEqualsCondition("field2", null);
+        query.addEqualsCondition("field3", null);
+        assertResultIds(index.performQuery(query), "key5");
+        assertEquals(1000, index.count(new Query()));
+
+        IndexEntry entry = new IndexEntry();
+        entry.addField("field1", "value5");
+        index.removeEntry(entry, Bytes.toBytes("key5"));
+        assertResultIds(index.performQuery(query));
+    }
+
     @Test
     public void testIndexEntryVerificationIndex() throws Exception {
         final String INDEX_NAME = "indexEntryVerification";
@@ -884,6 +1348,725 @@ public class IndexTest {
         assertEquals("foo", result.getDataAsString("originalValue"));
     }
 
+    @Test
+    public void testMultiValueFieldIndex() throws Exception {
+        final String INDEX_NAME = "multiValueField";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addStringField("tag");
+        indexDef.addIntegerField("category");
+        indexManager.createIndex(indexDef);
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+
+        // The duplicate tag is only indexed once: key1 gets 4 rows
+        IndexEntry entry1 = new IndexEntry();
+        entry1.addMultiValueField("tag", Arrays.asList("a", "b", "b"));
+        entry1.addMultiValueField("category", Arrays.asList(1, 2));
+        index.addEntry(entry1, Bytes.toBytes("key1"));
+
+        IndexEntry entry2 = new IndexEntry();
+        entry2.addField("tag", "b");
+        entry2.addField("category", 3);
+        index.addEntry(entry2, Bytes.toBytes("key2"));
+
+        Query query = new Query();
+        query.addEqualsCondition("tag", "b");
+        query.addEqualsCondition("category", 2);
+        assertResultIds(index.performQuery(query), "key1");
+
+        query = new Query();
+        query.addEqualsCondition("tag", "a");
+        assertResultIds(index.performQuery(query), "key1", "key1");
+
+        query = new Query();
+        query.addEqualsCondition("tag", "b");
+        query.setDistinct(true);
+        assertResultIds(index.performQuery(query), "key1", "key2");
+
+        query = new Query();
+        query.setRangeCondition("tag", "a", "b");
+        query.setDistinct(true);
+        assertResultIds(index.performQuery(query), "key1", "key2");
+
+        // Removal removes the rows of all combinations
+        index.removeEntry(entry1, Bytes.toBytes("key1"));
+
+        query = new Query();
+        query.setRangeCondition("tag", Query.MIN_VALUE, Query.MAX_VALUE);
+        assertResultIds(index.performQuery(query), "key2");
+    }
+
+    @Test
+    public void testMultiValueFieldValidation() throws Exception {
+        final String INDEX_NAME = "multiValueFieldValidation";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addIntegerField("field1");
+        indexManager.createIndex(indexDef);
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+
+        IndexEntry entry = new IndexEntry();
+        entry.addMultiValueField("field1", Arrays.asList(1, "two"));
+        try {
+            index.addEntry(entry, Bytes.toBytes("key1"));
+            fail("Expected a MalformedIndexEntryException.");
+        } catch (MalformedIndexEntryException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPrefixCondition() throws Exception {
+        String[] values = {"apple", "application", "Apply", "apricot", "ap", "banana"};
+
+        for (StringIndexFieldDefinition.ByteEncodeMode mode : StringIndexFieldDefinition.ByteEncodeMode.values()) {
+            final String INDEX_NAME = "prefixCondition" + mode;
+            IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+            IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+            indexDef.addStringField("field1");
+            StringIndexFieldDefinition fieldDef = indexDef.addStringField("field2");
+            fieldDef.setByteEncodeMode(mode);
+            fieldDef.setCaseSensitive(false);
+            fieldDef.setOrder(Order.DESCENDING);
+            indexManager.createIndex(indexDef);
+            Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+
+            for (int i = 0; i < values.length; i++) {
+                IndexEntry entry = new IndexEntry();
+                entry.addField("field1", "x");
+                entry.addField("field2", values[i]);
+                index.addEntry(entry, Bytes.toBytes("key" + i));
+            }
+
+            Query query = new Query();
+            query.addEqualsCondition("field1", "x");
+            query.setPrefixCondition("field2", "APPL");
+            assertResultSize(3, index.performQuery(query));
+
+            query = new Query();
+            query.addEqualsCondition("field1", "x");
+            query.setPrefixCondition("field2", "apr");
+            assertResultIds(index.performQuery(query), "key3");
+
+            query = new Query();
+            query.addEqualsCondition("field1", "y");
+            query.setPrefixCondition("field2", "a");
+            assertResultSize(0, index.performQuery(query));
+        }
+    }
+
+    @Test
+    public void testPrefixQueryValidation() throws Exception {
+        final String INDEX_NAME = "prefixQueryValidation";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addIntegerField("field1");
+        indexDef.addStringField("field2");
+        indexManager.createIndex(indexDef);
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+
+        Query query = new Query();
+        query.setPrefixCondition("field1", 5);
+        try {
+            index.performQuery(query);
+            fail("Expected a MalformedQueryException.");
+        } catch (MalformedQueryException e) {
+            // expected
+        }
+
+        query = new Query();
+        query.setPrefixCondition("field2", "a");
+        try {
+            index.performQuery(query);
+            fail("Expected a MalformedQueryException.");
+        } catch (MalformedQueryException e) {
+            // expected
+        }
+
+        query = new Query();
+        query.addEqualsCondition("field1", 5);
+        query.setPrefixCondition("field2", "a");
+        query.setRangeCondition("field2", "a", "b");
+        try {
+            index.performQuery(query);
+            fail("Expected a MalformedQueryException.");
+        } catch (MalformedQueryException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDataQualifiers() throws Exception {
+        final String INDEX_NAME = "dataQualifiers";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addStringField("field1");
+        indexManager.createIndex(indexDef);
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+
+        IndexEntry entry = new IndexEntry();
+        entry.addField("field1", "foo");
+        entry.addData("a", "value a");
+        entry.addData("b", "value b");
+        entry.addData("c", "value c");
+        index.addEntry(entry, Bytes.toBytes("key1"));
+
+        entry = new IndexEntry();
+        entry.addField("field1", "foo");
+        entry.addData("c", "value c");
+        index.addEntry(entry, Bytes.toBytes("key2"));
+
+        entry = new IndexEntry();
+        entry.addField("field1", "foo");
+        index.addEntry(entry, Bytes.toBytes("key3"));
+
+        // Entries which lack the requested data are returned too
+        Query query = new Query();
+        query.addEqualsCondition("field1", "foo");
+        query.addDataQualifier("b");
+        QueryResult result = index.performQuery(query);
+        assertEquals("key1", Bytes.toString(result.next()));
+        assertEquals("value b", result.getDataAsString("b"));
+        assertNull(result.getData("c"));
+        assertEquals("key2", Bytes.toString(result.next()));
+        assertNull(result.getData("b"));
+        assertEquals("key3", Bytes.toString(result.next()));
+        assertNull(result.next());
+
+        query = new Query();
+        query.setRangeCondition("field1", "f", "g");
+        query.setIncludeData(false);
+        result = index.performQuery(query);
+        assertEquals("key1", Bytes.toString(result.next()));
+        assertNull(result.getData("b"));
+        assertNull(result.getData("c"));
+        assertResultIds(result, "key2", "key3");
+    }
+
+    @Test
+    public void testCount() throws Exception {
+        final String INDEX_NAME = "count";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addStringField("field1");
+        indexDef.addIntegerField("field2");
+        indexManager.createIndex(indexDef);
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+
+        for (int i = 0; i < 100; i++) {
+            IndexEntry entry = new IndexEntry();
+            entry.addField("field1", i % 2 == 0 ? "even" : "odd");
+            entry.addMultiValueField("field2", Arrays.asList(i, i + 1000));
+            index.addEntry(entry, Bytes.toBytes("key" + i));
+        }
+
+        Query query = new Query();
+        query.addEqualsCondition("field1", "even");
+        query.setRangeCondition("field2", 10, 20, false, true);
+        assertEquals(5, index.count(query));
+
+        query = new Query();
+        query.addEqualsCondition("field1", "odd");
+        assertEquals(100, index.count(query));
+
+        query.setDistinct(true);
+        assertEquals(50, index.count(query));
+
+        query = new Query();
+        query.setPrefixCondition("field1", "ev");
+        assertEquals(100, index.count(query));
+
+        query = new Query();
+        query.addEqualsCondition("field1", "none");
+        assertEquals(0, index.count(query));
+    }
+
+    @Test
+    public void testParallelQuery() throws Exception {
+        final String INDEX_NAME = "parallelQuery";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addIntegerField("field1");
+        indexManager.createIndex(indexDef);
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+
+        for (int i = 0; i < 1000; i++) {
+            IndexEntry entry = new IndexEntry();
+            entry.addField("field1", i);
+            index.addEntry(entry, Bytes.toBytes("key" + i));
+        }
+
+        // The rows of all indexes are in the shared data table, the rows of this index are in order of field1
+        HTable htable = new HTable(TEST_UTIL.getConfiguration(), IndexManager.DEFAULT_DATA_TABLE);
+        List<byte[]> rowKeys = new ArrayList<byte[]>();
+        ResultScanner scanner = htable.getScanner(new Scan(Bytes.toBytes(indexDef.getFullName())));
+        try {
+            Result row;
+            while (rowKeys.size() < 1000 && (row = scanner.next()) != null) {
+                rowKeys.add(row.getRow());
+            }
+        } finally {
+            scanner.close();
+        }
+
+        // Split the data table in the middle of the queried range, so that there are multiple regions to scan
+        HBaseAdmin admin = new HBaseAdmin(TEST_UTIL.getConfiguration());
+        admin.flush(IndexManager.DEFAULT_DATA_TABLE);
+        admin.split(Bytes.toBytes(IndexManager.DEFAULT_DATA_TABLE), rowKeys.get(500));
+        long waitUntil = System.currentTimeMillis() + 30000;
+        while (countRegionStarts(htable, rowKeys.get(100), rowKeys.get(900)) == 0 &&
+                System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(200);
+        }
+        assertTrue("The queried range should span more than one region",
+                countRegionStarts(htable, rowKeys.get(100), rowKeys.get(900)) > 0);
+        htable.close();
+
+        Query query = new Query();
+        query.setRangeCondition("field1", 100, 900);
+        assertEquals(801, index.count(query));
+        List<String> expected = readIdentifiers(index.performQuery(query));
+        assertEquals(801, expected.size());
+
+        query.setParallelism(4);
+        assertEquals(expected, readIdentifiers(index.performQuery(query)));
+
+        query.setPreserveOrder(false);
+        List<String> unordered = readIdentifiers(index.performQuery(query));
+        assertEquals(new HashSet<String>(expected), new HashSet<String>(unordered));
+        assertEquals(expected.size(), unordered.size());
+
+        // Closing before the end
+        QueryResult result = index.performQuery(query);
+        assertNotNull(result.next());
+        result.close();
+    }
+
+    @Test
+    public void testPrefetchingQuery() throws Exception {
+        final String INDEX_NAME = "prefetchingQuery";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addIntegerField("field1");
+        indexManager.createIndex(indexDef);
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+
+        for (int i = 0; i < 500; i++) {
+            IndexEntry entry = new IndexEntry();
+            entry.addField("field1", i);
+            index.addEntry(entry, Bytes.toBytes("key" + i));
+        }
+
+        Query query = new Query();
+        query.setRangeCondition("field1", 50, 450);
+        List<String> expected = readIdentifiers(index.performQuery(query));
+        assertEquals(401, expected.size());
+
+        // Batches which do and do not evenly divide the number of results
+        query.setPrefetchSize(1);
+        assertEquals(expected, readIdentifiers(index.performQuery(query)));
+        query.setPrefetchSize(7);
+        assertEquals(expected, readIdentifiers(index.performQuery(query)));
+        query.setPrefetchSize(1000);
+        assertEquals(expected, readIdentifiers(index.performQuery(query)));
+
+        // Closing before the end
+        query.setPrefetchSize(10);
+        QueryResult result = index.performQuery(query);
+        assertNotNull(result.next());
+        result.close();
+    }
+
+    @Test
+    public void testBatchQuery() throws Exception {
+        final String INDEX_NAME = "batchQuery";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addIntegerField("field1");
+        indexDef.setIdentifierOrder(Order.DESCENDING);
+        indexManager.createIndex(indexDef);
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+
+        for (int i = 0; i < 10; i++) {
+            IndexEntry entry = new IndexEntry();
+            entry.addField("field1", i % 2);
+            entry.addData("data", "value" + i);
+            index.addEntry(entry, Bytes.toBytes("key" + i));
+        }
+
+        Query query = new Query();
+        query.addEqualsCondition("field1", 1);
+        QueryResult result = index.performQuery(query);
+
+        QueryResultBatch batch = new QueryResultBatch(1);
+        assertEquals(3, result.next(batch, 3));
+        assertEquals("key9", Bytes.toString(batch.getIdentifier(0)));
+        assertEquals("value9", batch.getDataAsString(0, "data"));
+        assertEquals("key5", Bytes.toString(batch.getIdentifierBuffer(), batch.getIdentifierOffset(2),
+                batch.getIdentifierLength(2)));
+        assertEquals("value5", batch.getDataAsString(2, "data"));
+
+        assertEquals(2, result.next(batch, 3));
+        assertEquals("key3", Bytes.toString(batch.getIdentifier(0)));
+        assertEquals("key1", Bytes.toString(batch.getIdentifier(1)));
+        assertEquals("value1", batch.getDataAsString(1, "data"));
+
+        assertEquals(0, result.next(batch, 3));
+        assertEquals(0, batch.size());
+    }
+
+    @Test
+    public void testReverseQuery() throws Exception {
+        final String INDEX_NAME = "reverseQuery";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addStringField("field1");
+        indexDef.addIntegerField("field2");
+        indexManager.createIndex(indexDef);
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+
+        // More rows than fit in one chunk of the reverse scan
+        for (int i = 0; i < 500; i++) {
+            IndexEntry entry = new IndexEntry();
+            entry.addField("field1", i % 2 == 0 ? "even" : "odd");
+            entry.addField("field2", i);
+            index.addEntry(entry, Bytes.toBytes("key" + i));
+        }
+
+        List<Query> queries = new ArrayList<Query>();
+
+        Query query = new Query();
+        query.addEqualsCondition("field1", "even");
+        query.setRangeCondition("field2", 10, 400, false, true);
+        queries.add(query);
+
+        query = new Query();
+        query.addEqualsCondition("field1", "odd");
+        queries.add(query);
+
+        query = new Query();
+        query.setPrefixCondition("field1", "ev");
+        queries.add(query);
+
+        query = new Query();
+        query.setRangeCondition("field1", "a", "z");
+        queries.add(query);
+
+        for (Query forward : queries) {
+            List<String> expected = readIdentifiers(index.performQuery(forward));
+            Collections.reverse(expected);
+            forward.setReverse(true);
+            assertEquals(expected, readIdentifiers(index.performQuery(forward)));
+        }
+
+        query = new Query();
+        query.addEqualsCondition("field1", "even");
+        query.setRangeCondition("field2", 10, 20, false, true);
+        query.setReverse(true);
+        assertResultIds(index.performQuery(query), "key20", "key18", "key16", "key14", "key12");
+    }
+
+    @Test
+    public void testQueryCache() throws Exception {
+        final String INDEX_NAME = "queryCache";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+        indexManager.enableQueryCache(1000, 60000);
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addStringField("field1");
+        indexDef.addIntegerField("field2");
+        indexManager.createIndex(indexDef);
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+
+        for (int i = 0; i < 10; i++) {
+            IndexEntry entry = new IndexEntry();
+            entry.addField("field1", i % 2 == 0 ? "even" : "odd");
+            entry.addField("field2", i);
+            entry.addData("data", "value" + i);
+            index.addEntry(entry, Bytes.toBytes("key" + i));
+        }
+
+        Query evenQuery = new Query();
+        evenQuery.addEqualsCondition("field1", "even");
+        Query allQuery = new Query();
+        allQuery.setRangeCondition("field2", 0, 100);
+        assertResultIds(index.performQuery(evenQuery), "key0", "key2", "key4", "key6", "key8");
+        assertResultSize(10, index.performQuery(allQuery));
+
+        // Writes through another IndexManager are not seen, the cached results are returned
+        Index otherIndex = new IndexManager(TEST_UTIL.getConfiguration()).getIndex(INDEX_NAME, INDEX_NAME);
+        IndexEntry entry = new IndexEntry();
+        entry.addField("field1", "even");
+        entry.addField("field2", 10);
+        otherIndex.addEntry(entry, Bytes.toBytes("key10"));
+
+        assertResultIds(index.performQuery(evenQuery), "key0", "key2", "key4", "key6", "key8");
+        assertResultSize(10, index.performQuery(allQuery));
+
+        // The data of cached results is available
+        QueryResult result = index.performQuery(evenQuery);
+        assertTrue(result.advance());
+        assertEquals("value0", result.getDataAsString("data"));
+        result.close();
+
+        // A write of an odd entry through an Index of the same IndexManager invalidates the
+        // results of queries on the odd entries and on the whole index
+        entry = new IndexEntry();
+        entry.addField("field1", "odd");
+        entry.addField("field2", 11);
+        indexManager.getIndex(INDEX_NAME, INDEX_NAME).addEntry(entry, Bytes.toBytes("key11"));
+
+        assertResultSize(12, index.performQuery(allQuery));
+
+        Query oddQuery = new Query();
+        oddQuery.addEqualsCondition("field1", "odd");
+        assertResultIds(index.performQuery(oddQuery), "key1", "key11", "key3", "key5", "key7", "key9");
+
+        // Removing an even entry invalidates the results of the even query
+        entry = new IndexEntry();
+        entry.addField("field1", "even");
+        entry.addField("field2", 0);
+        index.removeEntry(entry, Bytes.toBytes("key0"));
+        assertResultIds(index.performQuery(evenQuery), "key10", "key2", "key4", "key6", "key8");
+
+        // Results older than the staleness bound are not used
+        indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+        indexManager.enableQueryCache(1000, 100);
+        index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+        assertResultSize(11, index.performQuery(allQuery));
+
+        entry = new IndexEntry();
+        entry.addField("field1", "odd");
+        entry.addField("field2", 13);
+        otherIndex.addEntry(entry, Bytes.toBytes("key13"));
+        assertResultSize(11, index.performQuery(allQuery));
+
+        Thread.sleep(200);
+        assertResultSize(12, index.performQuery(allQuery));
+    }
+
+    @Test
+    public void testExists() throws Exception {
+        final String INDEX_NAME = "exists";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addStringField("field1");
+        indexDef.addIntegerField("field2");
+        indexManager.createIndex(indexDef);
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+
+        for (int i = 0; i < 10; i++) {
+            IndexEntry entry = new IndexEntry();
+            entry.addField("field1", i % 2 == 0 ? "even" : "odd");
+            entry.addField("field2", i);
+            index.addEntry(entry, Bytes.toBytes("key" + i));
+        }
+
+        IndexEntry entry = new IndexEntry();
+        entry.addField("field1", "even");
+        entry.addField("field2", 4);
+        assertTrue(index.exists(entry, Bytes.toBytes("key4")));
+        assertFalse(index.exists(entry, Bytes.toBytes("key5")));
+        entry.addField("field2", 5);
+        assertFalse(index.exists(entry, Bytes.toBytes("key5")));
+
+        Query evenQuery = new Query();
+        evenQuery.addEqualsCondition("field1", "even");
+        assertTrue(index.exists(evenQuery));
+
+        Query missingQuery = new Query();
+        missingQuery.addEqualsCondition("field1", "none");
+        assertFalse(index.exists(missingQuery));
+
+        Query rangeQuery = new Query();
+        rangeQuery.addEqualsCondition("field1", "odd");
+        rangeQuery.setRangeCondition("field2", 20, 30);
+        assertFalse(index.exists(rangeQuery));
+
+        boolean[] exists = index.existsAll(Arrays.asList(evenQuery, missingQuery, rangeQuery, evenQuery));
+        assertTrue(exists[0]);
+        assertFalse(exists[1]);
+        assertFalse(exists[2]);
+        assertTrue(exists[3]);
+
+        assertEquals(0, index.existsAll(Collections.<Query>emptyList()).length);
+
+        index.removeEntry(entry, Bytes.toBytes("key5"));
+        entry.addField("field1", "odd");
+        assertTrue(index.exists(entry, Bytes.toBytes("key5")));
+        index.removeEntry(entry, Bytes.toBytes("key5"));
+        assertFalse(index.exists(entry, Bytes.toBytes("key5")));
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        final String INDEX_NAME = "statistics";
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        IndexDefinition indexDef = new IndexDefinition(INDEX_NAME, INDEX_NAME);
+        indexDef.addStringField("field1");
+        indexDef.addIntegerField("field2");
+        indexManager.createIndex(indexDef);
+        Index index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+        assertNull(index.getStatistics());
+        assertNull(indexManager.getStatistics(INDEX_NAME, INDEX_NAME));
+
+        Query query = new Query();
+        query.addEqualsCondition("field1", "a");
+        assertEquals(-1, index.estimateRowCount(query));
+
+        // Value "a" occurs 1000 times, the values "b0" to "b99" 10 times each, field2 has
+        // 5 distinct values per value of field1
+        for (int i = 0; i < 1000; i++) {
+            IndexEntry entry = new IndexEntry();
+            entry.addField("field1", "a");
+            entry.addField("field2", i % 5);
+            index.addEntry(entry, Bytes.toBytes("a" + i));
+
+            entry = new IndexEntry();
+            entry.addField("field1", "b" + (i % 100));
+            entry.addField("field2", i % 5);
+            index.addEntry(entry, Bytes.toBytes("b" + i));
+        }
+
+        IndexStatistics statistics = indexManager.updateStatistics(INDEX_NAME, INDEX_NAME);
+        assertEquals(2000, statistics.getRowCount());
+        assertEquals(2, statistics.getFieldCount());
+        assertEquals(101, statistics.getDistinctCount(1));
+        assertEquals(505, statistics.getDistinctCount(2));
+        long rows = 0;
+        for (IndexStatistics.HistogramBucket bucket : statistics.getHistogram()) {
+            rows += bucket.getRowCount();
+        }
+        assertEquals(2000, rows);
+
+        // The statistics are loaded by getIndex
+        assertEquals(2000, indexManager.getStatistics(INDEX_NAME, INDEX_NAME).getRowCount());
+        index = indexManager.getIndex(INDEX_NAME, INDEX_NAME);
+        assertEquals(2000, index.getStatistics().getRowCount());
+
+        assertEquals(1000, index.estimateRowCount(query));
+        query.addEqualsCondition("field2", 3);
+        assertEquals(200, index.estimateRowCount(query));
+
+        query = new Query();
+        query.addEqualsCondition("field1", "b7");
+        long estimate = index.estimateRowCount(query);
+        assertTrue("Estimate: " + estimate, estimate >= 1 && estimate <= 100);
+
+        query = new Query();
+        query.addEqualsCondition("field1", "c");
+        assertEquals(0, index.estimateRowCount(query));
+
+        query = new Query();
+        query.setRangeCondition("field1", "b", "c");
+        estimate = index.estimateRowCount(query);
+        assertTrue("Estimate: " + estimate, estimate >= 900 && estimate <= 1100);
+
+        assertEquals(2000, index.estimateRowCount(new Query()));
+    }
+
+    @Test
+    public void testConjunctionBuilder() throws Exception {
+        IndexManager indexManager = new IndexManager(TEST_UTIL.getConfiguration());
+
+        IndexDefinition indexDef = new IndexDefinition("conjunctionBuilder", "allIndex");
+        indexDef.addStringField("field1");
+        indexManager.createIndex(indexDef);
+        Index allIndex = indexManager.getIndex("conjunctionBuilder", "allIndex");
+
+        indexDef = new IndexDefinition("conjunctionBuilder", "moduloIndex");
+        indexDef.addIntegerField("field1");
+        indexManager.createIndex(indexDef);
+        Index moduloIndex = indexManager.getIndex("conjunctionBuilder", "moduloIndex");
+
+        indexDef = new IndexDefinition("conjunctionBuilder", "colorIndex");
+        indexDef.addStringField("field1");
+        indexManager.createIndex(indexDef);
+        Index colorIndex = indexManager.getIndex("conjunctionBuilder", "colorIndex");
+
+        // The "all" query matches more rows than are sampled, so it needs to seek to the
+        // few results of the modulo query
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 3000; i++) {
+            String identifier = String.format("key%04d", i);
+            IndexEntry entry = new IndexEntry();
+            entry.addField("field1", "all");
+            allIndex.addEntry(entry, Bytes.toBytes(identifier));
+
+            entry = new IndexEntry();
+            entry.addField("field1", i % 500);
+            moduloIndex.addEntry(entry, Bytes.toBytes(identifier));
+
+            entry = new IndexEntry();
+            entry.addField("field1", i % 3 == 0 ? "red" : "blue");
+            colorIndex.addEntry(entry, Bytes.toBytes(identifier));
+
+            if (i % 500 == 7 && i % 3 == 0) {
+                expected.add(identifier);
+            }
+        }
+
+        Query allQuery = new Query();
+        allQuery.addEqualsCondition("field1", "all");
+        Query moduloQuery = new Query();
+        moduloQuery.addEqualsCondition("field1", 7);
+        Query redQuery = new Query();
+        redQuery.addEqualsCondition("field1", "red");
+
+        QueryResult result = new ConjunctionBuilder()
+                .add(allIndex, allQuery)
+                .add(colorIndex, redQuery)
+                .add(moduloIndex, moduloQuery)
+                .create();
+        assertEquals(expected, readIdentifiers(result));
+
+        // The same results as a Conjunction
+        result = new Conjunction(new Conjunction(allIndex.performQuery(allQuery), colorIndex.performQuery(redQuery)),
+                moduloIndex.performQuery(moduloQuery));
+        assertEquals(expected, readIdentifiers(result));
+
+        // A single query
+        assertResultSize(6, new ConjunctionBuilder().add(moduloIndex, moduloQuery).create());
+
+        // A query without results
+        Query noneQuery = new Query();
+        noneQuery.addEqualsCondition("field1", "none");
+        assertResultSize(0, new ConjunctionBuilder().add(allIndex, allQuery).add(colorIndex, noneQuery).create());
+    }
+
+    /**
+     * Counts the regions of the table which start after the given start row, up to and including the stop row.
+     */
+    private int countRegionStarts(HTable htable, byte[] startRow, byte[] stopRow) throws IOException {
+        int count = 0;
+        for (byte[] regionStart : htable.getStartEndKeys().getFirst()) {
+            if (Bytes.compareTo(regionStart, startRow) > 0 && Bytes.compareTo(regionStart, stopRow) <= 0)
+                count++;
+        }
+        return count;
+    }
+
+    private List<String> readIdentifiers(QueryResult result) throws IOException {
+        List<String> identifiers = new ArrayList<String>();
+        byte[] identifier;
+        while ((identifier = result.next()) != null) {
+            identifiers.add(Bytes.toString(identifier));
+        }
+        return identifiers;
+    }
+
     private void assertResultIds(QueryResult result, String... identifiers) throws IOException {
         int i = 0;
         byte[] identifier;
@@ -20,9 +20,11 @@ import org.junit.Test;
 import org.lilycms.hbaseindex.Conjunction;
 import org.lilycms.hbaseindex.Disjunction;
 import org.lilycms.hbaseindex.QueryResult;
+import org.lilycms.hbaseindex.QueryResultBatch;
 import static org.junit.Assert.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class MergeJoinTest {
@@ -56,6 +58,79 @@ public class MergeJoinTest {
         assertNull(result.next());
     }
 
+    @Test
+    public void testIdentifierBuffer() throws Exception {
+        String[] values1 = {"a", "b", "c",           "f", "g"};
+        String[] values2 = {     "b", "c", "d", "e", "f"};
+        String[] values3 = {"a",           "d",      "f", "g"};
+
+        // (values1 OR values2) AND values3, using the identifier buffers without copying
+        QueryResult result = new Conjunction(new Disjunction(buildQueryResult(values1), buildQueryResult(values2)),
+                buildQueryResult(values3));
+
+        List<String> identifiers = new ArrayList<String>();
+        while (result.advance()) {
+            identifiers.add(Bytes.toString(result.getIdentifierBuffer(), result.getIdentifierOffset(),
+                    result.getIdentifierLength()));
+        }
+
+        assertEquals(Arrays.asList("a", "d", "f", "g"), identifiers);
+        assertFalse(result.advance());
+        assertNull(result.next());
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        // Enough values to span multiple batches of the inputs
+        List<String> values1 = new ArrayList<String>();
+        List<String> values2 = new ArrayList<String>();
+        List<String> and = new ArrayList<String>();
+        List<String> or = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            String value = String.format("%04d", i);
+            boolean in1 = i % 2 == 0 || i > 700;
+            boolean in2 = i % 3 == 0 && i < 500;
+            if (in1)
+                values1.add(value);
+            if (in2)
+                values2.add(value);
+            if (in1 && in2)
+                and.add(value);
+            if (in1 || in2)
+                or.add(value);
+        }
+
+        String[] array1 = values1.toArray(new String[0]);
+        String[] array2 = values2.toArray(new String[0]);
+
+        assertEquals(and, readBatches(new Conjunction(buildQueryResult(array1), buildQueryResult(array2)), 7));
+        assertEquals(or, readBatches(new Disjunction(buildQueryResult(array1), buildQueryResult(array2)), 7));
+        assertEquals(or, readBatches(new Disjunction(buildQueryResult(array1), buildQueryResult(array2)), 1000));
+
+        // Mixing single results and batches
+        QueryResult result = new Conjunction(buildQueryResult(array1), buildQueryResult(array2));
+        assertEquals(and.get(0), Bytes.toString(result.next()));
+        assertEquals(and.get(1), Bytes.toString(result.next()));
+        assertEquals(and.subList(2, and.size()), readBatches(result, 5));
+        assertFalse(result.advance());
+    }
+
+    private List<String> readBatches(QueryResult result, int batchSize) throws Exception {
+        List<String> identifiers = new ArrayList<String>();
+        QueryResultBatch batch = new QueryResultBatch(2);
+        int count;
+        while ((count = result.next(batch, batchSize)) > 0) {
+            assertEquals(batch.size(), count);
+            assertTrue(count <= batchSize);
+            for (int i = 0; i < count; i++) {
+                identifiers.add(Bytes.toString(batch.getIdentifierBuffer(), batch.getIdentifierOffset(i),
+                        batch.getIdentifierLength(i)));
+            }
+        }
+        assertEquals(0, result.next(batch, batchSize));
+        return identifiers;
+    }
+
     private QueryResult buildQueryResult(String[] values) {
         List<byte[]> byteValues = new ArrayList<byte[]>(values.length);
 
@@ -16,22 +16,65 @@
 package org.lilycms.hbaseindex.test;
 
 import org.lilycms.hbaseindex.QueryResult;
+import org.lilycms.hbaseindex.QueryResultBatch;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
+/**
+ * A QueryResult returning a fixed list of identifiers. Each identifier is stored at a
+ * non-zero offset in a larger buffer, to check that users of the buffer respect the offset.
+ */
 public class StaticQueryResult implements QueryResult {
+    private static final int PADDING = 3;
     private Iterator<byte[]> iterator;
+    private byte[] buffer;
+    private int length;
 
     public StaticQueryResult(List<byte[]> values) {
         this.iterator = values.iterator();
     }
 
     public byte[] next() throws IOException {
-        return iterator.hasNext() ? iterator.next() : null;
+        return advance() ? Arrays.copyOfRange(buffer, PADDING, PADDING + length) : null;
+    }
+
+    public boolean advance() throws IOException {
+        if (!iterator.hasNext()) {
+            buffer = null;
+            return false;
+        }
+
+        byte[] value = iterator.next();
+        buffer = new byte[value.length + 2 * PADDING];
+        Arrays.fill(buffer, (byte)0xFF);
+        System.arraycopy(value, 0, buffer, PADDING, value.length);
+        length = value.length;
+        return true;
+    }
+
+    public int next(QueryResultBatch batch, int maxRows) throws IOException {
+        batch.clear();
+        while (batch.size() < maxRows && advance()) {
+            batch.add(buffer, PADDING, length);
+        }
+        return batch.size();
+    }
+
+    public byte[] getIdentifierBuffer() {
+        return buffer;
     }
-    
+
+    public int getIdentifierOffset() {
+        return PADDING;
+    }
+
+    public int getIdentifierLength() {
+        return length;
+    }
+
     public byte[] getData(byte[] qualifier) {
         return null;
     }
@@ -43,4 +86,7 @@ public class StaticQueryResult implements QueryResult {
     public byte[] getData(String qualifier) {
         return null;
     }
+
+    public void close() {
+    }
 }